@@ -71,7 +71,8 @@ public class App {
                     System.out.println("start rip!"); // ask to confirm save of configuration
                     System.out.println("start rip! -y"); // save configuration before exit
                     System.out.println("start rip! -n"); // discard configuration after exit
-                    System.out.println("playlist {user_id} {playlist_id}");
+                    System.out.println("playlist {user_id} {playlist_id}[,{playlist_id}...]");
+                    System.out.println("playlist {user_id} *"); // all playlists of the user
                     System.out.println("folder {absolute_download_path}");
                     System.out.println("token {oauth_access}");
                     System.out.println("load config");
@@ -0,0 +1,136 @@
+package com.spotripy;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adapters between blocking and asynchronous searches of a
+ * {@link ChanteyFinder}. Blocking searches run on a virtual thread each where
+ * the runtime has them, otherwise on a bounded pool of search threads, further
+ * searches waiting for a free thread.
+ */
+public final class AsyncFinders {
+
+    private static final int SEARCH_THREADS = 8;
+    private static final long IDLE_TIMEOUT = 60; // s, before an idle search thread ends
+    private static final ExecutorService executor = newSearchExecutor();
+
+    private AsyncFinders() {
+    }
+
+    /**
+     * @return executor starting a virtual thread per search, or a bounded pool
+     *         of daemon threads on runtimes without virtual threads
+     */
+    private static ExecutorService newSearchExecutor() {
+        ExecutorService perTask = TrackPipeline.newVirtualThreadPerTaskExecutor();
+        if (perTask != null) {
+            return perTask;
+        }
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(SEARCH_THREADS, SEARCH_THREADS, IDLE_TIMEOUT,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "spotripy-search-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Run the blocking search of a finder on a search thread. Cancelling the
+     * returned future, or completing it any other way before the search ends,
+     * interrupts the search.
+     *
+     * @param finder   the blocking finder
+     * @param songName the name of the song to search for including artists
+     * @return the search, completing with the candidates ranked best first
+     */
+    public static CompletableFuture<List<Candidate>> adapt(ChanteyFinder finder, String songName) {
+        CompletableFuture<List<Candidate>> search = new CompletableFuture<>();
+        Future<?> task = executor.submit(() -> {
+            try {
+                search.complete(finder.getCandidates(songName));
+            } catch (Throwable ex) {
+                search.completeExceptionally(ex);
+            }
+        });
+        search.whenComplete((found, ex) -> {
+            if (ex != null) {
+                task.cancel(true); // cancelled or timed out
+            }
+        });
+        return search;
+    }
+
+    /**
+     * Narrow a search to its best candidate. Cancelling the returned future
+     * cancels the search.
+     *
+     * @param search the search for all candidates
+     * @return the search, completing with the best candidate or empty
+     */
+    public static CompletableFuture<Optional<Candidate>> best(CompletableFuture<List<Candidate>> search) {
+        CompletableFuture<Optional<Candidate>> best = new CompletableFuture<>();
+        search.whenComplete((found, ex) -> {
+            if (ex != null) {
+                best.completeExceptionally(ex);
+            } else {
+                best.complete(found.isEmpty() ? Optional.empty() : Optional.of(found.get(0)));
+            }
+        });
+        best.whenComplete((found, ex) -> {
+            if (ex != null) {
+                search.cancel(true);
+            }
+        });
+        return best;
+    }
+
+    /**
+     * Wait for a search, cancelling it if it takes too long.
+     *
+     * @param <T>       the search result type
+     * @param search    the search
+     * @param timeoutMs ms to wait, 0 or less to wait until it ends
+     * @return the search result
+     * @throws IOException when the search failed, timed out or was
+     *                     interrupted
+     */
+    public static <T> T await(CompletableFuture<T> search, long timeoutMs) throws IOException {
+        try {
+            return timeoutMs > 0 ? search.get(timeoutMs, TimeUnit.MILLISECONDS) : search.get();
+        } catch (TimeoutException ex) {
+            search.cancel(true);
+            throw new InterruptedIOException("Search timed out after " + timeoutMs + " ms");
+        } catch (InterruptedException ex) {
+            search.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while searching");
+        } catch (CancellationException ex) {
+            throw new InterruptedIOException("Search cancelled");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+}
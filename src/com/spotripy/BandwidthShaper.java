@@ -0,0 +1,189 @@
+package com.spotripy;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Shapes download traffic to a total rate, a rate per host and a number of
+ * connections per host, so downloads running at once do not saturate a shared
+ * link or get throttled by mirrors. Rates are token buckets of bytes, see
+ * {@link RateLimiter}.
+ */
+public class BandwidthShaper {
+
+    /**
+     * Default total download rate in KB per second, 0 for no limit.
+     */
+    public static final int DEFAULT_RATE_KB = 0;
+
+    /**
+     * Default download rate per host in KB per second, 0 for no limit.
+     */
+    public static final int DEFAULT_HOST_RATE_KB = 0;
+
+    /**
+     * Default number of connections per host, 0 for no limit.
+     */
+    public static final int DEFAULT_HOST_CONNECTIONS = 0;
+
+    private static final int MAX_READ = 16 * 1024; // bytes charged at a time, keeps the rate smooth
+
+    private final RateLimiter total;
+    private final double hostRate;
+    private final int hostConnections;
+    private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * Create shaper.
+     *
+     * @param rate            total bytes per second, 0 or less for no limit
+     * @param hostRate        bytes per second per host, 0 or less for no limit
+     * @param hostConnections connections per host, 0 or less for no limit
+     */
+    public BandwidthShaper(double rate, double hostRate, int hostConnections) {
+        this.total = new RateLimiter(rate);
+        this.hostRate = hostRate;
+        this.hostConnections = hostConnections;
+    }
+
+    /**
+     * Create shaper with limits read from configuration.
+     *
+     * @param config the configuration to read "download-rate-kb",
+     *               "download-host-rate-kb" and "download-host-connections"
+     *               from
+     * @return the new shaper
+     */
+    public static BandwidthShaper fromConfig(Configuration config) {
+        return new BandwidthShaper(config.getIntProperty("download-rate-kb", DEFAULT_RATE_KB) * 1024.0,
+                config.getIntProperty("download-host-rate-kb", DEFAULT_HOST_RATE_KB) * 1024.0,
+                config.getIntProperty("download-host-connections", DEFAULT_HOST_CONNECTIONS));
+    }
+
+    /**
+     * Take a connection slot for the host, waiting until one is free. Each call
+     * must be matched by a call to {@link #release(String)}.
+     *
+     * @param host the host to connect to
+     * @throws InterruptedIOException when interrupted while waiting
+     */
+    public void acquire(String host) throws InterruptedIOException {
+        Semaphore connections = host(host).connections;
+        if (connections != null) {
+            try {
+                connections.acquire();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a connection to " + host);
+            }
+        }
+    }
+
+    /**
+     * Take a connection slot for the host if one is free right now. A slot taken
+     * must be given back with {@link #release(String)}.
+     *
+     * @param host the host to connect to
+     * @return true if a slot was taken or there is no limit
+     */
+    public boolean tryAcquire(String host) {
+        Semaphore connections = host(host).connections;
+        return connections == null || connections.tryAcquire();
+    }
+
+    /**
+     * Give back a connection slot for the host.
+     *
+     * @param host the host connected to
+     */
+    public void release(String host) {
+        Semaphore connections = host(host).connections;
+        if (connections != null) {
+            connections.release();
+        }
+    }
+
+    /**
+     * Wrap a download channel so reads from it are held to the total and host
+     * rates.
+     *
+     * @param in   the download channel
+     * @param host the host downloaded from
+     * @return the shaped channel
+     */
+    public ReadableByteChannel shape(ReadableByteChannel in, String host) {
+        return new ShapedChannel(in, host(host).rate);
+    }
+
+    private Host host(String name) {
+        return hosts.computeIfAbsent(name, key -> new Host(hostRate, hostConnections));
+    }
+
+    /**
+     * Limits of a single host.
+     */
+    private static class Host {
+
+        private final RateLimiter rate;
+        private final Semaphore connections;
+
+        private Host(double rate, int connections) {
+            this.rate = new RateLimiter(rate);
+            this.connections = connections > 0 ? new Semaphore(connections, true) : null;
+        }
+
+    }
+
+    /**
+     * Channel charging the bytes read to the total and host rates.
+     */
+    private class ShapedChannel implements ReadableByteChannel {
+
+        private final ReadableByteChannel in;
+        private final RateLimiter hostRate;
+
+        private ShapedChannel(ReadableByteChannel in, RateLimiter hostRate) {
+            this.in = in;
+            this.hostRate = hostRate;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int limit = dst.limit();
+            dst.limit(Math.min(limit, dst.position() + MAX_READ));
+            int read;
+            try {
+                read = in.read(dst);
+            } finally {
+                dst.limit(limit);
+            }
+            if (read > 0) {
+                try {
+                    total.acquire(read);
+                    hostRate.acquire(read);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while shaping download");
+                }
+            }
+            return read;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return in.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+    }
+
+}
@@ -0,0 +1,108 @@
+package com.spotripy;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A download found for a song by a {@link ChanteyFinder}, with what the finder
+ * could tell about its quality. Finders for which getting the download URL
+ * costs a request of its own get it in {@link #getLink()}, so only the
+ * candidates a download reaches cost one.
+ */
+public class Candidate {
+
+    /**
+     * Order of candidates from best to worst: best match first, then highest
+     * bitrate, then largest file.
+     */
+    public static final Comparator<Candidate> RANKING = Comparator.comparingDouble((Candidate c) -> c.score)
+            .thenComparingInt(c -> c.bitrate).thenComparingLong(c -> c.size).reversed();
+
+    private final String link;
+
+    /**
+     * Bitrate in kbps or 0 if unknown.
+     */
+    public final int bitrate;
+
+    /**
+     * File size in bytes or -1 if unknown.
+     */
+    public final long size;
+
+    /**
+     * Duration in milliseconds or 0 if unknown.
+     */
+    public final long durationMs;
+
+    /**
+     * How well the title matches the song, from 0 to 1.
+     */
+    public final double score;
+
+    /**
+     * Create candidate nothing else is known about.
+     *
+     * @param link the download URL
+     */
+    public Candidate(String link) {
+        this(link, 0, -1, 0, 1);
+    }
+
+    /**
+     * Create candidate.
+     *
+     * @param link       the download URL or null if {@link #getLink()} gets it
+     * @param bitrate    the bitrate in kbps or 0 if unknown
+     * @param size       the file size in bytes or -1 if unknown
+     * @param durationMs the duration in milliseconds or 0 if unknown
+     * @param score      how well the title matches the song, from 0 to 1
+     */
+    public Candidate(String link, int bitrate, long size, long durationMs, double score) {
+        this.link = link;
+        this.bitrate = bitrate;
+        this.size = size;
+        this.durationMs = durationMs;
+        this.score = score;
+    }
+
+    /**
+     * Get the download URL.
+     *
+     * @return the download URL
+     * @throws IOException when the download URL can not be got
+     */
+    public String getLink() throws IOException {
+        return link;
+    }
+
+    /**
+     * Get the link of the best candidate whose link can be got.
+     *
+     * @param candidates the candidates ranked best first
+     * @return the download URL or null if there are no candidates
+     * @throws IOException when no candidate link can be got
+     */
+    public static String firstLink(List<Candidate> candidates) throws IOException {
+        IOException failure = null;
+        for (Candidate candidate : candidates) {
+            try {
+                return candidate.getLink();
+            } catch (IOException ex) {
+                failure = ex;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return link + (bitrate > 0 ? " " + bitrate + "kbps" : "") + (size >= 0 ? " " + size + " bytes" : "")
+                + (durationMs > 0 ? " " + durationMs / 1000 + "s" : "") + " score " + score;
+    }
+
+}
@@ -1,6 +1,10 @@
 package com.spotripy;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 public interface ChanteyFinder {
 
@@ -12,4 +16,43 @@ public interface ChanteyFinder {
      * @throws IOException when unable to connect
      */
     public String getDownloadLink(String songName) throws IOException;
+
+    /**
+     * Get the downloads found for the specified song, best first, so a failed
+     * download can fall back to the next one without searching again. By
+     * default only the download link is returned.
+     *
+     * @param songName the name of the song to search for including artists
+     * @return the candidates ranked best first, empty if none were found
+     * @throws IOException when unable to connect
+     */
+    public default List<Candidate> getCandidates(String songName) throws IOException {
+        String link = getDownloadLink(songName);
+        return link == null || link.isEmpty() ? Collections.emptyList()
+                : Collections.singletonList(new Candidate(link));
+    }
+
+    /**
+     * Search for the candidates of the specified song without blocking.
+     * Cancelling the returned future cancels the search. By default the
+     * blocking search runs on a search thread, see
+     * {@link AsyncFinders#adapt(ChanteyFinder, String)}.
+     *
+     * @param songName the name of the song to search for including artists
+     * @return the search, completing with the candidates ranked best first
+     */
+    public default CompletableFuture<List<Candidate>> findAllAsync(String songName) {
+        return AsyncFinders.adapt(this, songName);
+    }
+
+    /**
+     * Search for the best candidate of the specified song without blocking.
+     * Cancelling the returned future cancels the search.
+     *
+     * @param songName the name of the song to search for including artists
+     * @return the search, completing with the best candidate or empty
+     */
+    public default CompletableFuture<Optional<Candidate>> findAsync(String songName) {
+        return AsyncFinders.best(findAllAsync(songName));
+    }
 }
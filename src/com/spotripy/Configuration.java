@@ -87,6 +87,26 @@ public class Configuration {
         return props.getProperty(name, defaultValue);
     }
 
+    /**
+     * Get a specific integer property
+     *
+     * @param name         the name of the property to return
+     * @param defaultValue the default value if property is not set or invalid
+     * @return the integer value of the property specified in name
+     */
+    public int getIntProperty(String name, int defaultValue) {
+        String value = props.getProperty(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            logger.log(Level.WARNING, "Invalid integer for ''{0}'': {1}", new Object[] { name, value });
+            return defaultValue;
+        }
+    }
+
     /**
      * Set a configuration property of name to the specified value. Then save the
      * configuration.
@@ -0,0 +1,581 @@
+package com.spotripy;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Downloads track files. Content is written to a ".part" file next to the
+ * track file, with the validators of the response and the progress kept in a
+ * ".part.meta" file, so an interrupted download is resumed with ranged requests
+ * on the next run. The part file is only renamed to the track file once
+ * complete.
+ *
+ * Large files from servers supporting ranged requests can be split into
+ * segments downloaded over their own connections at once, each written at its
+ * offset in the part file, for hosts that throttle each connection.
+ *
+ * All downloads share a {@link BandwidthShaper} holding them to the configured
+ * rates and connections per host. Redirects are followed up to a few hops and
+ * connections are left open for reuse by later downloads from the same host.
+ */
+public class Downloader implements Closeable {
+
+    /**
+     * Extension of files being downloaded.
+     */
+    public static final String PART_EXT = ".part";
+
+    /**
+     * Extension of the progress file of a file being downloaded.
+     */
+    public static final String META_EXT = ".meta";
+
+    /**
+     * Default number of segments a file is downloaded in.
+     */
+    public static final int DEFAULT_SEGMENTS = 1;
+
+    private static final int MAX_REDIRECTS = 5;
+    private static final long MAX_DRAIN = 64 * 1024; // 64KB, longer unread bodies close their connection
+    private static final long CHUNK_SIZE = 1024 * 1024; // 1MB
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024; // 1MB
+    private static final int CONNECT_TIMEOUT = 15000; // 15s
+    private static final int READ_TIMEOUT = 30000; // 30s, stalled downloads fail and are resumed later
+    private static final String USER_AGENT = "Mozilla/5.0 (X11; U; Linux i686) Gecko/20071127 Firefox/2.0.0.11";
+    private static final Logger logger = Logger.getLogger(Downloader.class.getName());
+
+    private final int segments;
+    private final BandwidthShaper shaper;
+    private final ExecutorService executor;
+
+    /**
+     * Create downloader.
+     *
+     * @param segments max number of segments a file is downloaded in, 1 for a
+     *                 single connection per file
+     * @param shaper   the rate and connection limits to download within
+     */
+    public Downloader(int segments, BandwidthShaper shaper) {
+        this.segments = Math.max(1, segments);
+        this.shaper = shaper;
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "spotripy-segments");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Create downloader with the number of segments and bandwidth limits read
+     * from configuration.
+     *
+     * @param config the configuration to read "download-segments" and the
+     *               {@link BandwidthShaper} limits from
+     * @return the new downloader
+     */
+    public static Downloader fromConfig(Configuration config) {
+        return new Downloader(config.getIntProperty("download-segments", DEFAULT_SEGMENTS),
+                BandwidthShaper.fromConfig(config));
+    }
+
+    /**
+     * Download the url to the file, resuming a previous partial download of the
+     * same content if there is one.
+     *
+     * @param url  the download link
+     * @param file the track file
+     * @return the check of the downloaded file
+     * @throws IOException when the download fails or ends early, the partial
+     *                     download is kept to be resumed
+     */
+    public Mp3Verifier.Result copyURLToFile(URL url, File file) throws IOException {
+        File part = new File(file.getPath() + PART_EXT);
+        File metaFile = new File(part.getPath() + META_EXT);
+        Progress progress = part.exists() ? Progress.load(metaFile, part) : null;
+        Mp3Verifier verifier = new Mp3Verifier();
+        if (progress != null && progress.validator() != null) {
+            logger.log(Level.INFO, "Download resumed {0} at {1} of {2} bytes",
+                    new Object[] { file.getName(), progress.written(), progress.length });
+            if (!fetch(url, part, metaFile, progress, null, verifier)) {
+                logger.log(Level.INFO, "Download changed since interrupted, restarting {0}", file.getName());
+                verifier = new Mp3Verifier();
+                progress = start(url, part, metaFile, file, verifier);
+            }
+        } else {
+            progress = start(url, part, metaFile, file, verifier);
+        }
+        verifier.catchUp(part); // bytes of other segments or earlier runs
+        Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        metaFile.delete();
+        return verifier.result(progress.length);
+    }
+
+    /**
+     * Delete any partial download of the file.
+     *
+     * @param file the track file
+     */
+    public static void deletePartial(File file) {
+        new File(file.getPath() + PART_EXT).delete();
+        new File(file.getPath() + PART_EXT + META_EXT).delete();
+    }
+
+    /**
+     * Download from scratch, splitting the file into segments if it is large
+     * enough and the server supports ranged requests.
+     *
+     * @return the progress of the completed download
+     */
+    private Progress start(URL url, File part, File metaFile, File file, Mp3Verifier verifier) throws IOException {
+        part.delete();
+        HttpURLConnection conn = request(url, null, null, false);
+        Progress progress;
+        try {
+            int code = conn.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + code + " " + conn.getResponseMessage());
+            }
+            long length = conn.getContentLengthLong();
+            progress = new Progress(url.toString(), conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified"),
+                    length);
+            if (segments > 1 && progress.validator() != null
+                    && "bytes".equals(conn.getHeaderField("Accept-Ranges"))) {
+                progress.split((int) Math.min(segments, length / MIN_SEGMENT_SIZE));
+            }
+            progress.save(metaFile);
+        } catch (IOException | RuntimeException ex) {
+            release(conn);
+            throw ex;
+        }
+        logger.log(Level.INFO, "Download started {0} ({1} bytes in {2} segments)",
+                new Object[] { file.getName(), progress.length, progress.starts.length });
+        // segments are requested from where the redirects led
+        if (!fetch(conn.getURL(), part, metaFile, progress, conn, verifier)) {
+            throw new IOException("Download changed while downloading " + file.getName());
+        }
+        return progress;
+    }
+
+    /**
+     * Download the incomplete segments. The first is downloaded on the calling
+     * thread. The others are downloaded at once only as far as the host has free
+     * connection slots, the rest follow the first on the calling thread, which
+     * never waits for a slot while holding one. Segments are checked as they
+     * stream if the verifier is up to their start.
+     *
+     * @param opened   response to read the first segment from or null to
+     *                 request it
+     * @param verifier the check of the file so far
+     * @return false if the content changed since the progress was saved
+     */
+    private boolean fetch(URL url, File part, File metaFile, Progress progress, HttpURLConnection opened,
+            Mp3Verifier verifier) throws IOException {
+        HttpURLConnection first = opened;
+        try (FileChannel out = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (progress.starts.length > 1 && out.size() < progress.length) {
+                out.write(ByteBuffer.allocate(1), progress.length - 1); // transfers past the end write nothing
+            }
+            List<Integer> pending = new ArrayList<>();
+            for (int i = 0; i < progress.starts.length; i++) {
+                if (!progress.isDone(i)) {
+                    pending.add(i);
+                }
+            }
+            List<Future<Boolean>> others = new ArrayList<>();
+            List<Integer> later = new ArrayList<>();
+            for (int i : pending.subList(Math.min(1, pending.size()), pending.size())) {
+                if (!shaper.tryAcquire(url.getHost())) {
+                    later.add(i); // no free connection to the host
+                    continue;
+                }
+                try {
+                    others.add(executor.submit(() -> fetchSegment(url, null, true, out, progress, metaFile, i, null)));
+                } catch (RejectedExecutionException ex) {
+                    shaper.release(url.getHost());
+                    later.add(i);
+                }
+            }
+            IOException error = null;
+            boolean unchanged = true;
+            try {
+                if (!pending.isEmpty()) {
+                    unchanged = fetchSegment(url, first, false, out, progress, metaFile, pending.get(0),
+                            progress.position(pending.get(0)) == verifier.position() ? verifier : null);
+                }
+                if (first != null) {
+                    release(first); // free its slot before waiting on the other segments
+                    first = null;
+                }
+                for (int i : later) {
+                    if (!unchanged) {
+                        break;
+                    }
+                    unchanged = fetchSegment(url, null, false, out, progress, metaFile, i,
+                            progress.position(i) == verifier.position() ? verifier : null);
+                }
+            } catch (IOException ex) {
+                error = ex;
+            }
+            for (Future<Boolean> other : others) {
+                try {
+                    unchanged &= other.get();
+                } catch (ExecutionException ex) {
+                    if (error == null) {
+                        error = ex.getCause() instanceof IOException ? (IOException) ex.getCause()
+                                : new IOException(ex.getCause());
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Download interrupted", ex);
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+            return unchanged;
+        } finally {
+            if (first != null) {
+                release(first);
+            }
+        }
+    }
+
+    /**
+     * Download the rest of a segment, saving the progress after each chunk.
+     *
+     * @param opened   response to read from or null to request the segment
+     * @param slotHeld true if a connection slot for the url host was already
+     *                 taken for the request
+     * @param verifier check to stream the segment through or null
+     * @return false if the content changed since the progress was saved
+     */
+    private boolean fetchSegment(URL url, HttpURLConnection opened, boolean slotHeld, FileChannel out,
+            Progress progress, File metaFile, int segment, Mp3Verifier verifier) throws IOException {
+        long position = progress.position(segment);
+        long end = progress.ends[segment];
+        HttpURLConnection conn = opened != null ? opened
+                : request(url, "bytes=" + position + "-" + (end < 0 ? "" : Long.toString(end - 1)),
+                        progress.validator(), slotHeld);
+        try {
+            if (opened == null) {
+                int code = conn.getResponseCode();
+                if (code == HttpURLConnection.HTTP_OK || code == 416) {
+                    return false; // content changed
+                } else if (code != HttpURLConnection.HTTP_PARTIAL) {
+                    throw new IOException("HTTP " + code + " " + conn.getResponseMessage());
+                } else if (parseRangeStart(conn.getHeaderField("Content-Range")) != position) {
+                    throw new IOException("Unexpected range " + conn.getHeaderField("Content-Range"));
+                }
+            }
+            // the body is closed on release, keeping the connection if it was read
+            ReadableByteChannel in = shaper.shape(Channels.newChannel(conn.getInputStream()),
+                    conn.getURL().getHost());
+            if (verifier != null) {
+                in = verifier.wrap(in);
+            }
+            long read;
+            while (!progress.isDone(segment) && (read = out.transferFrom(in, progress.position(segment),
+                    Math.min(CHUNK_SIZE, progress.remaining(segment)))) > 0) {
+                progress.advance(segment, read);
+                progress.save(metaFile);
+            }
+        } finally {
+            if (opened == null) {
+                release(conn);
+            }
+        }
+        if (progress.ends[segment] < 0) {
+            progress.finish(segment); // length unknown, done once the body ends
+        } else if (!progress.isDone(segment)) {
+            throw new IOException("Download ended at " + progress.position(segment) + " of " + progress.length
+                    + " bytes");
+        }
+        return true;
+    }
+
+    /**
+     * Request the url, following up to {@link #MAX_REDIRECTS} redirects. The
+     * returned connection holds a host connection slot until released.
+     *
+     * @param range     the Range header or null for the whole content
+     * @param validator the If-Range header or null
+     * @param slotHeld  true if a connection slot for the url host was already
+     *                  taken for the request
+     */
+    private HttpURLConnection request(URL url, String range, String validator, boolean slotHeld)
+            throws IOException {
+        URL location = url;
+        for (int hops = 0;; hops++) {
+            HttpURLConnection conn = open(location, slotHeld && hops == 0);
+            try {
+                if (range != null) {
+                    conn.setRequestProperty("Range", range);
+                    if (validator != null) {
+                        conn.setRequestProperty("If-Range", validator);
+                    }
+                }
+                int code = conn.getResponseCode();
+                if (!isRedirect(code)) {
+                    return conn;
+                }
+                String target = conn.getHeaderField("Location");
+                if (target == null) {
+                    throw new IOException("HTTP " + code + " without Location");
+                } else if (hops >= MAX_REDIRECTS) {
+                    throw new IOException("Too many redirects from " + url.getHost());
+                }
+                location = new URL(location, target); // Location may be relative
+            } catch (IOException | RuntimeException ex) {
+                release(conn);
+                throw ex;
+            }
+            release(conn);
+        }
+    }
+
+    private static boolean isRedirect(int code) {
+        return code == HttpURLConnection.HTTP_MOVED_PERM || code == HttpURLConnection.HTTP_MOVED_TEMP
+                || code == HttpURLConnection.HTTP_SEE_OTHER || code == 307 || code == 308;
+    }
+
+    /**
+     * Open a connection once the host has a free connection slot.
+     *
+     * @param slotHeld true if the slot was already taken
+     */
+    private HttpURLConnection open(URL url, boolean slotHeld) throws IOException {
+        if (!slotHeld) {
+            shaper.acquire(url.getHost());
+        }
+        try {
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            conn.addRequestProperty("Accept", "*/*");
+            conn.setRequestProperty("User-Agent", USER_AGENT);
+            conn.setRequestProperty("Connection", "keep-alive");
+            conn.setRequestProperty("Pragma", "no-cache");
+            conn.setInstanceFollowRedirects(false);
+            conn.setConnectTimeout(CONNECT_TIMEOUT);
+            conn.setReadTimeout(READ_TIMEOUT);
+            return conn;
+        } catch (IOException | RuntimeException ex) {
+            shaper.release(url.getHost());
+            throw ex;
+        }
+    }
+
+    /**
+     * Free the host connection slot of a connection. Short unread bodies, like
+     * those of redirects, are drained and the body closed rather than the
+     * connection disconnected, so the connection goes straight back to the
+     * keep-alive pool for the next request to the host.
+     */
+    private void release(HttpURLConnection conn) {
+        try {
+            InputStream in = conn.getResponseCode() >= 400 ? conn.getErrorStream() : conn.getInputStream();
+            if (in != null) {
+                byte[] buffer = new byte[8192];
+                long drained = 0;
+                int read;
+                while (drained < MAX_DRAIN && (read = in.read(buffer)) != -1) {
+                    drained += read;
+                }
+                in.close(); // the connection is dropped if the body was not read to the end
+            }
+        } catch (IOException ex) {
+            conn.disconnect();
+        } finally {
+            shaper.release(conn.getURL().getHost());
+        }
+    }
+
+    /**
+     * @param contentRange header value like "bytes 100-999/1000"
+     * @return the first byte of the range or -1 if malformed
+     */
+    private static long parseRangeStart(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ") || contentRange.indexOf('-') < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(6, contentRange.indexOf('-')).trim());
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Validators, length and segment progress of a partial download, needed to
+     * check the content is unchanged and to pick up where it stopped.
+     */
+    private static class Progress {
+
+        private final String url;
+        private final String etag;
+        private final String lastModified;
+        private final long length;
+        private long[] starts = { 0 };
+        private long[] ends; // exclusive, -1 if the length is unknown
+        private long[] written;
+
+        private Progress(String url, String etag, String lastModified, long length) {
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.ends = new long[] { length };
+            this.written = new long[] { 0 };
+        }
+
+        /**
+         * Split the download into segments of about equal size.
+         *
+         * @param count number of segments
+         */
+        private synchronized void split(int count) {
+            if (count < 2) {
+                return;
+            }
+            starts = new long[count];
+            ends = new long[count];
+            written = new long[count];
+            for (int i = 0; i < count; i++) {
+                starts[i] = length * i / count;
+                ends[i] = length * (i + 1) / count;
+            }
+        }
+
+        /**
+         * @return validator to send with If-Range or null if the download can
+         *         not be resumed
+         */
+        private String validator() {
+            if (etag != null && !etag.startsWith("W/")) {
+                return etag; // weak tags can not be used in ranged requests
+            }
+            return lastModified;
+        }
+
+        private synchronized boolean isDone(int segment) {
+            return ends[segment] >= 0 && starts[segment] + written[segment] >= ends[segment];
+        }
+
+        private synchronized long position(int segment) {
+            return starts[segment] + written[segment];
+        }
+
+        /**
+         * @return bytes left in the segment, a chunk if the length is unknown
+         */
+        private synchronized long remaining(int segment) {
+            return ends[segment] < 0 ? CHUNK_SIZE : ends[segment] - position(segment);
+        }
+
+        private synchronized void advance(int segment, long bytes) {
+            written[segment] += bytes;
+        }
+
+        private synchronized void finish(int segment) {
+            ends[segment] = position(segment);
+        }
+
+        /**
+         * @return bytes written in all segments
+         */
+        private synchronized long written() {
+            long total = 0;
+            for (long bytes : written) {
+                total += bytes;
+            }
+            return total;
+        }
+
+        private synchronized void save(File metaFile) throws IOException {
+            Properties props = new Properties();
+            props.setProperty("url", url);
+            props.setProperty("length", Long.toString(length));
+            if (etag != null) {
+                props.setProperty("etag", etag);
+            }
+            if (lastModified != null) {
+                props.setProperty("last-modified", lastModified);
+            }
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < starts.length; i++) {
+                sb.append(i > 0 ? "," : "").append(starts[i]).append(':').append(ends[i]).append(':')
+                        .append(written[i]);
+            }
+            props.setProperty("segments", sb.toString());
+            try (OutputStream out = new FileOutputStream(metaFile)) {
+                props.store(out, "Spotripy Download");
+            }
+        }
+
+        /**
+         * Load saved progress. Progress saved without segments is a single
+         * segment as long as the part file.
+         *
+         * @return the saved progress or null if none or unreadable
+         */
+        private static Progress load(File metaFile, File part) {
+            if (!metaFile.exists()) {
+                return null;
+            }
+            Properties props = new Properties();
+            try (InputStream in = new FileInputStream(metaFile)) {
+                props.load(in);
+                Progress progress = new Progress(props.getProperty("url"), props.getProperty("etag"),
+                        props.getProperty("last-modified"), Long.parseLong(props.getProperty("length", "-1")));
+                String value = props.getProperty("segments");
+                if (value == null) {
+                    progress.written[0] = part.length();
+                    return progress;
+                }
+                String[] segments = value.split(",");
+                progress.starts = new long[segments.length];
+                progress.ends = new long[segments.length];
+                progress.written = new long[segments.length];
+                for (int i = 0; i < segments.length; i++) {
+                    String[] fields = segments[i].split(":");
+                    progress.starts[i] = Long.parseLong(fields[0]);
+                    progress.ends[i] = Long.parseLong(fields[1]);
+                    progress.written[i] = Long.parseLong(fields[2]);
+                }
+                return progress;
+            } catch (IOException | RuntimeException ex) {
+                logger.log(Level.INFO, "Ignoring unreadable download progress {0}", metaFile.getName());
+                return null;
+            }
+        }
+
+    }
+
+}
@@ -1,61 +1,358 @@
 package com.spotripy;
 
-import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-import org.json.JSONArray;
 import org.jsoup.Jsoup;
+import org.jsoup.select.Elements;
 
 /**
+ * Finds the song on YouTube and converts the video with easy-youtube-mp3. The
+ * first few videos found are returned as candidates in search order, each only
+ * converted once a download reaches it, so falling back to the next video
+ * costs neither a search nor a conversion up front. The videos found for a
+ * search are cached for long, as search results rarely change, separately from
+ * the converter links, which expire soon. So when only a converter link expired
+ * the search is skipped.
  *
  * @author Emmanuel
  */
-public class EasyYouTube implements ChanteyFinder {
+public class EasyYouTube implements ChanteyFinder, Closeable {
 
+    /**
+     * Name of the index from normalised search to YouTube video ids.
+     */
+    public static final String INDEX_NAME = ".spotripy.search";
+
+    /**
+     * Default days a found video is reused before searching again.
+     */
+    public static final int DEFAULT_SEARCH_TTL_DAYS = 30;
+
+    /**
+     * Default minutes a converter link is reused before converting again.
+     */
+    public static final int DEFAULT_CONVERTER_TTL_MINUTES = 30;
+
+    /**
+     * Default number of videos returned as candidates for a song.
+     */
+    public static final int DEFAULT_CANDIDATES = 3;
+
+    private static final String[] RESULTS_PATH = { "response", "contents", "twoColumnSearchResultsRenderer",
+            "primaryContents" }; // in the second element of the search response
+    private static final int TIMEOUT = 15000; // 15s, so a cancelled search does not hang on
     private static String USER_AGENT = "Mozilla/5.0 (X11; U; Linux i686) Gecko/20071127 Firefox/2.0.0.11";
+    private static final Logger logger = Logger.getLogger(EasyYouTube.class.getName());
+
+    private final LinkIndex searches;
+    private final long searchTtl;
+    private final long converterTtl;
+    private final int candidates;
+    private final Map<String, Cached> converterLinks = new ConcurrentHashMap<>();
+
+    /**
+     * Create finder caching converter links for the default time and found
+     * videos only in memory.
+     */
+    public EasyYouTube() {
+        this(null, TimeUnit.DAYS.toMillis(DEFAULT_SEARCH_TTL_DAYS),
+                TimeUnit.MINUTES.toMillis(DEFAULT_CONVERTER_TTL_MINUTES), DEFAULT_CANDIDATES);
+    }
 
-    private static String getResponse(URLConnection conn) throws IOException {
-        BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-        StringBuilder response = new StringBuilder();
-        String inputLine;
-        while ((inputLine = in.readLine()) != null)
-            response.append(inputLine);
+    /**
+     * Create finder.
+     *
+     * @param searches     index to keep found videos in or null to keep them
+     *                     only in memory
+     * @param searchTtl    time in milliseconds found videos are trusted for
+     * @param converterTtl time in milliseconds a converter link is trusted for
+     * @param candidates   max number of videos returned for a song
+     */
+    public EasyYouTube(LinkIndex searches, long searchTtl, long converterTtl, int candidates) {
+        this.searches = searches;
+        this.searchTtl = searchTtl;
+        this.converterTtl = converterTtl;
+        this.candidates = Math.max(1, candidates);
+    }
 
-        in.close();
-        return response.toString();
+    /**
+     * Create finder keeping found videos in the download folder, with TTLs read
+     * from configuration.
+     *
+     * @param config         the configuration to read "search-ttl-days",
+     *                       "converter-ttl-minutes" and "youtube-candidates"
+     *                       from
+     * @param downloadFolder the download folder
+     * @return the new finder
+     * @throws IOException when the search index can not be opened
+     */
+    public static EasyYouTube fromConfig(Configuration config, File downloadFolder) throws IOException {
+        return new EasyYouTube(LinkIndex.open(downloadFolder, INDEX_NAME),
+                TimeUnit.DAYS.toMillis(config.getIntProperty("search-ttl-days", DEFAULT_SEARCH_TTL_DAYS)),
+                TimeUnit.MINUTES.toMillis(
+                        config.getIntProperty("converter-ttl-minutes", DEFAULT_CONVERTER_TTL_MINUTES)),
+                config.getIntProperty("youtube-candidates", DEFAULT_CANDIDATES));
     }
 
+    /**
+     * Find the song and convert the first video that converts.
+     *
+     * @param songName the name of the song to search for including artists
+     * @return the download link or null if the search found no video
+     * @throws IOException when the search or every conversion fails, so a
+     *                     passing outage is not taken for a song that can not
+     *                     be found
+     */
     public String getDownloadLink(String songName) throws IOException {
+        return Candidate.firstLink(getCandidates(songName));
+    }
+
+    /**
+     * Find the videos of the song, reusing an earlier search. The videos are
+     * converted only when their link is got.
+     *
+     * @param songName the name of the song to search for including artists
+     * @return the videos in search order, empty if the search found none
+     * @throws IOException when the search fails
+     */
+    @Override
+    public List<Candidate> getCandidates(String songName) throws IOException {
+        List<String> videoIds = getCachedVideoIds(songName);
+        if (videoIds == null) {
+            videoIds = search(songName);
+            if (searches != null && !videoIds.isEmpty()) {
+                searches.put(songName, new Cached(String.join(",", videoIds)).encode());
+            }
+        }
+        List<Candidate> videos = new ArrayList<>();
+        for (String videoId : videoIds) {
+            videos.add(new Video(songName, videoId));
+        }
+        return videos;
+    }
+
+    /**
+     * @return the videos found by an earlier search for the song or null if
+     *         none are trusted
+     */
+    private List<String> getCachedVideoIds(String songName) {
+        if (searches == null) {
+            return null;
+        }
+        Cached videos = Cached.decode(searches.get(songName));
+        if (videos == null || System.currentTimeMillis() - videos.created > searchTtl) {
+            return null;
+        }
+        List<String> videoIds = Arrays.asList(videos.value.split(","));
+        return videoIds.subList(0, Math.min(candidates, videoIds.size()));
+    }
+
+    /**
+     * Search YouTube for the song. The response is streamed only up to the id
+     * of the last video wanted, the rest is never read.
+     *
+     * @return ids of the first videos found, empty if the results have none
+     * @throws IOException when the search fails or the response is not the
+     *                     expected search response
+     */
+    private List<String> search(String songName) throws IOException {
         String searchURL = String.format("https://www.youtube.com/results?search_query=%s&pbj=1", sanitize(songName));
         URL youTubeURL = new URL(searchURL);
         HttpURLConnection youTubeConn = (HttpURLConnection) youTubeURL.openConnection();
+        youTubeConn.setConnectTimeout(TIMEOUT);
+        youTubeConn.setReadTimeout(TIMEOUT);
         youTubeConn.setRequestProperty("user-agent", USER_AGENT);
         youTubeConn.setRequestProperty("pragma", "no-cache");
         youTubeConn.setRequestProperty("referer", searchURL);
         youTubeConn.setRequestProperty("x-youtube-client-name", "1");
         youTubeConn.setRequestProperty("x-youtube-client-version", "2.20181115");
-        String youTubeResponse = getResponse(youTubeConn);
-        try {
-            JSONArray value = new JSONArray(youTubeResponse);
-            String videoId = value.getJSONObject(1).getJSONObject("response").getJSONObject("contents")
-                    .getJSONObject("twoColumnSearchResultsRenderer").getJSONObject("primaryContents")
-                    .getJSONObject("sectionListRenderer").getJSONArray("contents").getJSONObject(0)
-                    .getJSONObject("itemSectionRenderer").getJSONArray("contents").getJSONObject(0)
-                    .getJSONObject("videoRenderer").getString("videoId");
-            String easyURL = String.format("https://www.easy-youtube-mp3.com/download.php?v=%s", videoId);
-            return Jsoup.connect(easyURL).header("Cache-Control", "no-cache").userAgent(USER_AGENT).get()
-                    .select(".btn.btn-success").get(0).attr("href");
-        } catch (Exception e) {
-            return null;
+        InputStream youTubeResponse = youTubeConn.getInputStream();
+        try (JsonStreamReader reader = new JsonStreamReader(youTubeResponse)) {
+            reader.beginArray();
+            reader.skipValue(); // page metadata
+            for (String name : RESULTS_PATH) {
+                if (reader.peek() != JsonStreamReader.Token.BEGIN_OBJECT || !enter(reader, name)) {
+                    throw new IOException("Unexpected YouTube search response, no " + name);
+                }
+            }
+            List<String> videoIds = new ArrayList<>();
+            findVideoIds(reader, videoIds);
+            return videoIds;
         }
     }
 
+    /**
+     * Enter the next object up to the value of the named member.
+     *
+     * @return false if the object has no such member
+     */
+    private static boolean enter(JsonStreamReader reader, String name) throws IOException {
+        reader.beginObject();
+        return reader.skipTo(name);
+    }
+
+    /**
+     * Walk the next value depth first collecting the ids of the videos in it,
+     * up to the number of candidates wanted.
+     *
+     * @param reader   the reader positioned at the value
+     * @param videoIds the list to add the videoId of each videoRenderer to
+     * @return true if enough videos were found, in which case the rest of the
+     *         value was not read
+     * @throws IOException when the response can not be read or is malformed
+     */
+    private boolean findVideoIds(JsonStreamReader reader, List<String> videoIds) throws IOException {
+        switch (reader.peek()) {
+        case BEGIN_OBJECT:
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("videoRenderer")
+                        && reader.peek() == JsonStreamReader.Token.BEGIN_OBJECT) {
+                    reader.beginObject();
+                    if (reader.skipTo("videoId") && reader.peek() == JsonStreamReader.Token.STRING) {
+                        videoIds.add(reader.nextString());
+                        if (videoIds.size() >= candidates) {
+                            return true;
+                        }
+                    }
+                    reader.skipRemaining();
+                    reader.endObject();
+                } else if (findVideoIds(reader, videoIds)) {
+                    return true;
+                }
+            }
+            reader.endObject();
+            return false;
+        case BEGIN_ARRAY:
+            reader.beginArray();
+            while (reader.hasNext()) {
+                if (findVideoIds(reader, videoIds)) {
+                    return true;
+                }
+            }
+            reader.endArray();
+            return false;
+        default:
+            reader.skipValue();
+            return false;
+        }
+    }
+
+    /**
+     * Get the converter download link of the video, reusing a recent one.
+     *
+     * @return the download link
+     * @throws IOException when the converter can not be reached or gives no
+     *                     download link
+     */
+    private String convert(String videoId) throws IOException {
+        Cached link = converterLinks.get(videoId);
+        if (link != null && System.currentTimeMillis() - link.created <= converterTtl) {
+            return link.value;
+        }
+        converterLinks.remove(videoId);
+        String easyURL = String.format("https://www.easy-youtube-mp3.com/download.php?v=%s", videoId);
+        Elements buttons = Jsoup.connect(easyURL).header("Cache-Control", "no-cache").userAgent(USER_AGENT)
+                .timeout(TIMEOUT).get().select(".btn.btn-success");
+        String href = buttons.isEmpty() ? "" : buttons.get(0).attr("href");
+        if (href.isEmpty()) {
+            throw new IOException("No download link converting video " + videoId);
+        }
+        converterLinks.put(videoId, new Cached(href));
+        return href;
+    }
+
     private static String sanitize(String name) {
         return name.replaceAll("[^a-zA-Z0-9]+", " ").replaceAll(" ", "+");
     }
 
+    @Override
+    public void close() throws IOException {
+        if (searches != null) {
+            searches.close();
+        }
+    }
+
+    /**
+     * Video found for a song, converted when its link is first got.
+     */
+    private class Video extends Candidate {
+
+        private final String songName;
+        private final String videoId;
+
+        private Video(String songName, String videoId) {
+            super(null, 0, -1, 0, 1);
+            this.songName = songName;
+            this.videoId = videoId;
+        }
+
+        @Override
+        public String getLink() throws IOException {
+            try {
+                return convert(videoId);
+            } catch (IOException ex) {
+                if (searches != null && searches.get(songName) != null) {
+                    logger.log(Level.INFO, "Video {0} not converted, searching again next time", videoId);
+                    searches.remove(songName); // the videos may be gone
+                }
+                throw ex;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "YouTube video " + videoId;
+        }
+
+    }
+
+    /**
+     * Cached value with the time it was found.
+     */
+    private static class Cached {
+
+        private final String value;
+        private final long created;
+
+        private Cached(String value) {
+            this(value, System.currentTimeMillis());
+        }
+
+        private Cached(String value, long created) {
+            this.value = value;
+            this.created = created;
+        }
+
+        private String encode() {
+            return created + "\t" + value;
+        }
+
+        private static Cached decode(String encoded) {
+            if (encoded == null) {
+                return null;
+            }
+            int tab = encoded.indexOf('\t');
+            try {
+                return new Cached(encoded.substring(tab + 1), Long.parseLong(encoded.substring(0, tab)));
+            } catch (RuntimeException ex) {
+                return null;
+            }
+        }
+
+    }
+
 }
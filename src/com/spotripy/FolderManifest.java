@@ -0,0 +1,207 @@
+package com.spotripy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sizes of the track files in a playlist folder, kept in memory so checking if
+ * a track is already downloaded needs no file system call. The manifest is
+ * saved with the modification time of the folder and trusted on the next run
+ * if the folder was not changed since, otherwise the folder is listed once.
+ * Listed files are only stat'ed once their size is asked for. The sizes of an
+ * out of date manifest are kept to tell which files changed since.
+ */
+public class FolderManifest {
+
+    /**
+     * Name of the manifest file in the playlist folder.
+     */
+    public static final String FILENAME = ".manifest";
+
+    private static final String HEADER = "mtime";
+    private static final String END = "end"; // last line, missing if the save was torn
+    private static final long UNKNOWN = -1; // size of a listed file not stat'ed yet
+    private static final Logger logger = Logger.getLogger(FolderManifest.class.getName());
+
+    private final File folder;
+    private final String extension;
+    private final Map<String, Long> sizes = new HashMap<>(); // UNKNOWN until asked for
+    private final Map<String, Long> recorded = new HashMap<>(); // by an out of date manifest
+
+    private FolderManifest(File folder, String extension) {
+        this.folder = folder;
+        this.extension = extension;
+    }
+
+    /**
+     * Load the manifest of the folder, scanning the folder if the saved
+     * manifest is missing or out of date.
+     *
+     * @param folder    the playlist folder
+     * @param extension extension of the track files
+     * @return the manifest
+     */
+    public static FolderManifest load(File folder, String extension) {
+        FolderManifest manifest = new FolderManifest(folder, extension);
+        if (!manifest.read()) {
+            logger.log(Level.INFO, "Scanning folder {0}", folder.getName());
+            manifest.scan();
+        }
+        return manifest;
+    }
+
+    /**
+     * @param name the track file name
+     * @return true if the folder has the track file
+     */
+    public synchronized boolean contains(String name) {
+        return sizes.containsKey(name);
+    }
+
+    /**
+     * Check a track file is still the one recorded. Files are only compared
+     * with the size an out of date manifest recorded for them, as an up to date
+     * manifest means the folder was not touched.
+     *
+     * @param name the track file name
+     * @return false if the folder has no such file or its size changed since
+     *         recorded
+     */
+    public synchronized boolean isIntact(String name) {
+        if (!sizes.containsKey(name)) {
+            return false;
+        }
+        Long expected = recorded.get(name);
+        return expected == null || expected == UNKNOWN || size(name) == expected;
+    }
+
+    /**
+     * Get the size of a track file, reading it from the file system the first
+     * time it is asked for if the file was only listed.
+     *
+     * @param name the track file name
+     * @return the size of the track file or -1 if there is none
+     */
+    public synchronized long size(String name) {
+        Long size = sizes.get(name);
+        if (size == null) {
+            return -1;
+        }
+        if (size == UNKNOWN) {
+            try {
+                size = Files.size(new File(folder, name).toPath());
+                sizes.put(name, size);
+            } catch (IOException ex) {
+                sizes.remove(name); // gone since listed
+                return -1;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Record a track file written to the folder.
+     *
+     * @param name the track file name
+     * @param size the file size
+     */
+    public synchronized void put(String name, long size) {
+        sizes.put(name, size);
+        recorded.remove(name);
+    }
+
+    /**
+     * Record a track file deleted from the folder.
+     *
+     * @param name the track file name
+     */
+    public synchronized void remove(String name) {
+        sizes.remove(name);
+        recorded.remove(name);
+    }
+
+    /**
+     * Save the manifest with the current modification time of the folder. The
+     * file is written in place, which unlike creating or renaming files leaves
+     * the folder time unchanged, so must be the last change to the folder.
+     */
+    public synchronized void save() {
+        File file = new File(folder, FILENAME);
+        try {
+            if (!file.exists()) {
+                Files.createFile(file.toPath()); // changes the folder time, so before reading it
+            }
+            long mtime = folder.lastModified();
+            try (Writer out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+                out.write(HEADER + "\t" + mtime + "\n");
+                for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+                    out.write(LinkJournal.escape(entry.getKey()) + "\t" + entry.getValue() + "\n");
+                }
+                out.write(END + "\n");
+            }
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Cannot save folder manifest.", ex);
+        }
+    }
+
+    /**
+     * Read the saved manifest.
+     *
+     * @return false if missing, torn or the folder changed since it was saved,
+     *         in which case the sizes of a whole manifest are kept as recorded
+     */
+    private boolean read() {
+        File file = new File(folder, FILENAME);
+        if (!file.exists()) {
+            return false;
+        }
+        try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line = in.readLine();
+            String[] fields = line == null ? new String[0] : line.split("\t");
+            if (fields.length != 2 || !fields[0].equals(HEADER)) {
+                return false;
+            }
+            boolean current = Long.parseLong(fields[1]) == folder.lastModified();
+            while ((line = in.readLine()) != null) {
+                if (line.equals(END)) {
+                    if (current) {
+                        return true;
+                    }
+                    recorded.putAll(sizes);
+                    break;
+                }
+                fields = line.split("\t", -1);
+                sizes.put(LinkJournal.unescape(fields[0]), Long.parseLong(fields[1]));
+            }
+        } catch (IOException | RuntimeException ex) {
+            logger.log(Level.INFO, "Ignoring unreadable folder manifest {0}", folder.getName());
+        }
+        sizes.clear();
+        return false;
+    }
+
+    /**
+     * List the track files of the folder in a single directory pass, without
+     * reading their sizes.
+     */
+    private void scan() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder.toPath(), "*." + extension)) {
+            for (Path path : files) {
+                sizes.put(path.getFileName().toString(), UNKNOWN);
+            }
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Cannot scan folder " + folder.getName(), ex);
+        }
+    }
+
+}
@@ -0,0 +1,414 @@
+package com.spotripy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Pull parser reading JSON one token at a time. Callers pick out the keys they
+ * need and skip the rest, skipped strings are never built, and can stop reading
+ * as soon as they have what they are after instead of building the whole tree
+ * like {@link org.json.JSONObject}.
+ */
+public class JsonStreamReader implements Closeable {
+
+    /**
+     * Kind of the next token.
+     */
+    public enum Token {
+        BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+    }
+
+    private static final int OBJECT_NAME = 0; // in object, expecting a name or end
+    private static final int OBJECT_VALUE = 1; // in object, expecting the value of a name
+    private static final int ARRAY = 2; // in array, expecting a value or end
+
+    private final Reader in;
+    private final char[] buffer = new char[8192];
+    private final Deque<Integer> scopes = new ArrayDeque<>();
+    private int pos;
+    private int limit;
+    private Token peeked;
+    private String literal; // text of a peeked number, boolean or null
+
+    /**
+     * Create reader over a UTF-8 stream.
+     *
+     * @param stream the JSON stream
+     */
+    public JsonStreamReader(InputStream stream) {
+        this(new InputStreamReader(stream, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Create reader over a character stream.
+     *
+     * @param in the JSON characters
+     */
+    public JsonStreamReader(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * Look at the kind of the next token without consuming it.
+     *
+     * @return the next token kind
+     * @throws IOException when the stream can not be read or is malformed
+     */
+    public Token peek() throws IOException {
+        if (peeked != null) {
+            return peeked;
+        }
+        Integer scope = scopes.peek();
+        int c = nextNonWhitespace();
+        if (scope != null && scope == OBJECT_NAME) {
+            if (c == ',') {
+                c = nextNonWhitespace();
+            }
+            if (c == '}') {
+                return peeked = Token.END_OBJECT;
+            } else if (c == '"') {
+                return peeked = Token.NAME;
+            }
+            throw syntaxError("Expected name");
+        }
+        if (scope != null && scope == ARRAY) {
+            if (c == ',') {
+                c = nextNonWhitespace();
+            }
+            if (c == ']') {
+                return peeked = Token.END_ARRAY;
+            }
+        }
+        switch (c) {
+        case -1:
+            return peeked = Token.END_DOCUMENT;
+        case '{':
+            return peeked = Token.BEGIN_OBJECT;
+        case '[':
+            return peeked = Token.BEGIN_ARRAY;
+        case '"':
+            return peeked = Token.STRING;
+        default:
+            literal = readLiteral((char) c);
+            if (literal.equals("true") || literal.equals("false")) {
+                return peeked = Token.BOOLEAN;
+            } else if (literal.equals("null")) {
+                return peeked = Token.NULL;
+            }
+            return peeked = Token.NUMBER;
+        }
+    }
+
+    /**
+     * @return true if the current object or array has more elements
+     * @throws IOException when the stream can not be read or is malformed
+     */
+    public boolean hasNext() throws IOException {
+        Token token = peek();
+        return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+    }
+
+    /**
+     * Consume the start of an object.
+     *
+     * @throws IOException when the next token is not an object
+     */
+    public void beginObject() throws IOException {
+        expect(Token.BEGIN_OBJECT);
+        valueConsumed();
+        scopes.push(OBJECT_NAME);
+    }
+
+    /**
+     * Consume the end of an object.
+     *
+     * @throws IOException when the next token is not the end of an object
+     */
+    public void endObject() throws IOException {
+        expect(Token.END_OBJECT);
+        scopes.pop();
+    }
+
+    /**
+     * Consume the start of an array.
+     *
+     * @throws IOException when the next token is not an array
+     */
+    public void beginArray() throws IOException {
+        expect(Token.BEGIN_ARRAY);
+        valueConsumed();
+        scopes.push(ARRAY);
+    }
+
+    /**
+     * Consume the end of an array.
+     *
+     * @throws IOException when the next token is not the end of an array
+     */
+    public void endArray() throws IOException {
+        expect(Token.END_ARRAY);
+        scopes.pop();
+    }
+
+    /**
+     * Consume an object member name.
+     *
+     * @return the name
+     * @throws IOException when the next token is not a name
+     */
+    public String nextName() throws IOException {
+        expect(Token.NAME);
+        String name = readString(true);
+        if (nextNonWhitespace() != ':') {
+            throw syntaxError("Expected ':'");
+        }
+        scopes.pop();
+        scopes.push(OBJECT_VALUE);
+        return name;
+    }
+
+    /**
+     * Consume a string value. Numbers and booleans are returned as text.
+     *
+     * @return the string value
+     * @throws IOException when the next token is not a scalar
+     */
+    public String nextString() throws IOException {
+        Token token = peek();
+        String value;
+        if (token == Token.STRING) {
+            peeked = null;
+            value = readString(true);
+        } else if (token == Token.NUMBER || token == Token.BOOLEAN) {
+            peeked = null;
+            value = literal;
+        } else {
+            throw syntaxError("Expected string but was " + token);
+        }
+        valueConsumed();
+        return value;
+    }
+
+    /**
+     * Consume a number value.
+     *
+     * @return the value as int
+     * @throws IOException when the next token is not a number
+     */
+    public int nextInt() throws IOException {
+        expect(Token.NUMBER);
+        valueConsumed();
+        try {
+            return (int) Double.parseDouble(literal);
+        } catch (NumberFormatException ex) {
+            throw syntaxError("Expected number");
+        }
+    }
+
+    /**
+     * Consume a null value.
+     *
+     * @throws IOException when the next token is not null
+     */
+    public void nextNull() throws IOException {
+        expect(Token.NULL);
+        valueConsumed();
+    }
+
+    /**
+     * Skip the next value, including all nested values of an object or array.
+     *
+     * @throws IOException when the stream can not be read or is malformed
+     */
+    public void skipValue() throws IOException {
+        switch (peek()) {
+        case BEGIN_OBJECT:
+            beginObject();
+            while (hasNext()) {
+                nextName();
+                skipValue();
+            }
+            endObject();
+            break;
+        case BEGIN_ARRAY:
+            beginArray();
+            while (hasNext()) {
+                skipValue();
+            }
+            endArray();
+            break;
+        case STRING:
+            peeked = null;
+            readString(false);
+            valueConsumed();
+            break;
+        case NUMBER:
+        case BOOLEAN:
+        case NULL:
+            peeked = null;
+            valueConsumed();
+            break;
+        default:
+            throw syntaxError("Expected value but was " + peek());
+        }
+    }
+
+    /**
+     * Skip members of the current object up to the named one.
+     *
+     * @param name the member name to find
+     * @return true if found, the value is next, false if the object ended
+     * @throws IOException when the stream can not be read or is malformed
+     */
+    public boolean skipTo(String name) throws IOException {
+        while (hasNext()) {
+            if (nextName().equals(name)) {
+                return true;
+            }
+            skipValue();
+        }
+        return false;
+    }
+
+    /**
+     * Skip the remaining members or elements of the current object or array,
+     * leaving its end as the next token.
+     *
+     * @throws IOException when the stream can not be read or is malformed
+     */
+    public void skipRemaining() throws IOException {
+        while (hasNext()) {
+            if (peek() == Token.NAME) {
+                nextName();
+            }
+            skipValue();
+        }
+    }
+
+    private void expect(Token token) throws IOException {
+        if (peek() != token) {
+            throw syntaxError("Expected " + token + " but was " + peeked);
+        }
+        peeked = null;
+    }
+
+    private void valueConsumed() {
+        if (!scopes.isEmpty() && scopes.peek() == OBJECT_VALUE) {
+            scopes.pop();
+            scopes.push(OBJECT_NAME);
+        }
+    }
+
+    private int read() throws IOException {
+        if (pos == limit) {
+            limit = in.read(buffer, 0, buffer.length);
+            pos = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[pos++];
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c == ' ' || c == '\t' || c == '\n' || c == '\r');
+        return c;
+    }
+
+    /**
+     * Read the rest of a string after its opening quote.
+     *
+     * @param keep false to only skip past the string
+     */
+    private String readString(boolean keep) throws IOException {
+        StringBuilder sb = keep ? new StringBuilder() : null;
+        int c;
+        while ((c = read()) != '"') {
+            if (c == -1) {
+                throw syntaxError("Unterminated string");
+            }
+            if (c == '\\') {
+                c = read();
+                switch (c) {
+                case 'n':
+                    c = '\n';
+                    break;
+                case 't':
+                    c = '\t';
+                    break;
+                case 'r':
+                    c = '\r';
+                    break;
+                case 'b':
+                    c = '\b';
+                    break;
+                case 'f':
+                    c = '\f';
+                    break;
+                case 'u':
+                    char[] hex = new char[4];
+                    for (int i = 0; i < 4; i++) {
+                        int h = read();
+                        if (h == -1) {
+                            throw syntaxError("Unterminated escape");
+                        }
+                        hex[i] = (char) h;
+                    }
+                    try {
+                        c = Integer.parseInt(new String(hex), 16);
+                    } catch (NumberFormatException ex) {
+                        throw syntaxError("Invalid escape");
+                    }
+                    break;
+                case -1:
+                    throw syntaxError("Unterminated escape");
+                default:
+                    // \" \\ \/ stand for themselves
+                }
+            }
+            if (keep) {
+                sb.append((char) c);
+            }
+        }
+        return keep ? sb.toString() : null;
+    }
+
+    private String readLiteral(char first) throws IOException {
+        StringBuilder sb = new StringBuilder().append(first);
+        while (true) {
+            if (pos == limit && read() != -1) {
+                pos--; // refilled, keep the character for the check below
+            }
+            if (pos == limit) {
+                break;
+            }
+            char c = buffer[pos];
+            if (c == ',' || c == '}' || c == ']' || c == ':' || c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                break;
+            }
+            sb.append(c);
+            pos++;
+        }
+        return sb.toString();
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException("Malformed JSON: " + message);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+}
@@ -0,0 +1,290 @@
+package com.spotripy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Download link cache layered over the playlist journal and the shared index.
+ * Entries carry their creation time along with hit and failure counts, stale
+ * or repeatedly failing links are evicted and the rest are revalidated with a
+ * HEAD request before being handed out. Hits are counted in memory and
+ * written along with the next change to the entry or when the cache is closed,
+ * so reusing a link does not rewrite it each time.
+ */
+public class LinkCache implements Closeable {
+
+    /**
+     * Default time in minutes a cached link is trusted for.
+     */
+    public static final int DEFAULT_TTL_MINUTES = 24 * 60;
+
+    /**
+     * Default number of failures after which a cached link is evicted.
+     */
+    public static final int DEFAULT_MAX_FAILURES = 2;
+
+    private static final int CHECK_TIMEOUT = 5000; // 5s
+    private static final String USER_AGENT = "Mozilla/5.0 (X11; U; Linux i686) Gecko/20071127 Firefox/2.0.0.11";
+    private static final Logger logger = Logger.getLogger(LinkCache.class.getName());
+
+    private final LinkJournal journal;
+    private final LinkIndex index;
+    private final long ttl;
+    private final int maxFailures;
+    private final Map<String, Integer> hits = new ConcurrentHashMap<>(); // not yet written, by track
+
+    /**
+     * Create cache over the playlist journal and shared index.
+     *
+     * @param journal     the playlist link journal
+     * @param index       the link index shared by all playlists
+     * @param ttl         time in milliseconds a cached link is trusted for
+     * @param maxFailures number of failures after which a link is evicted
+     */
+    public LinkCache(LinkJournal journal, LinkIndex index, long ttl, int maxFailures) {
+        this.journal = journal;
+        this.index = index;
+        this.ttl = ttl;
+        this.maxFailures = maxFailures;
+    }
+
+    /**
+     * Create cache with TTL and failure limit read from configuration.
+     *
+     * @param journal the playlist link journal
+     * @param index   the link index shared by all playlists
+     * @param config  the configuration to read "link-ttl-minutes" and
+     *                "link-max-failures" from
+     * @return the new cache
+     */
+    public static LinkCache fromConfig(LinkJournal journal, LinkIndex index, Configuration config) {
+        return new LinkCache(journal, index,
+                TimeUnit.MINUTES.toMillis(config.getIntProperty("link-ttl-minutes", DEFAULT_TTL_MINUTES)),
+                config.getIntProperty("link-max-failures", DEFAULT_MAX_FAILURES));
+    }
+
+    /**
+     * Get a live download link for the track. Links past their TTL or failure
+     * limit are evicted, the others are only returned if a HEAD request to them
+     * still succeeds.
+     *
+     * @param track the track name
+     * @return the cached link or null if none is usable
+     */
+    public String get(String track) {
+        CachedLink link = lookup(track);
+        if (link == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - link.created > ttl || link.failures >= maxFailures) {
+            logger.log(Level.INFO, "Evicting stale link for ''{0}''", track);
+            remove(track);
+            return null;
+        }
+        if (!isAlive(link.url)) {
+            store(track, link.failed());
+            return null;
+        }
+        hits.merge(track, 1, Integer::sum);
+        return link.url;
+    }
+
+    /**
+     * Cache a newly found download link for the track. Nothing is written if
+     * the link is already cached.
+     *
+     * @param track the track name
+     * @param url   the download link
+     */
+    public void put(String track, String url) {
+        CachedLink link = lookup(track);
+        if (link == null || !link.url.equals(url)) {
+            store(track, new CachedLink(url));
+        } else if (journal.get(track) == null) {
+            journal.put(track, link.encode()); // found while syncing another playlist
+        }
+    }
+
+    /**
+     * Record a failed download of the cached link for the track.
+     *
+     * @param track the track name
+     */
+    public void fail(String track) {
+        CachedLink link = lookup(track);
+        if (link != null) {
+            store(track, link.failed());
+        }
+    }
+
+    private CachedLink lookup(String track) {
+        String value = journal.get(track);
+        if (value == null) {
+            // the track may have been found while syncing another playlist
+            value = index.get(track);
+        }
+        if (value == null) {
+            return null;
+        }
+        CachedLink link = CachedLink.decode(value);
+        return link.hit(hits.getOrDefault(track, 0));
+    }
+
+    private void store(String track, CachedLink link) {
+        hits.remove(track);
+        if (link.failures >= maxFailures) {
+            remove(track);
+        } else {
+            String value = link.encode();
+            journal.put(track, value);
+            index.put(track, value);
+        }
+    }
+
+    private void remove(String track) {
+        hits.remove(track);
+        journal.remove(track);
+        index.remove(track);
+    }
+
+    /**
+     * Cheaply check that a link still serves a file without downloading it.
+     *
+     * @param url the link to check
+     * @return false if the link is unreachable, missing or serves a web page
+     */
+    private static boolean isAlive(String url) {
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+            conn.setRequestMethod("HEAD");
+            conn.setRequestProperty("User-Agent", USER_AGENT);
+            conn.setConnectTimeout(CHECK_TIMEOUT);
+            conn.setReadTimeout(CHECK_TIMEOUT);
+            int code = conn.getResponseCode();
+            String type = conn.getContentType();
+            conn.disconnect();
+            if (code == HttpURLConnection.HTTP_BAD_METHOD || code == HttpURLConnection.HTTP_NOT_IMPLEMENTED) {
+                return true; // server does not support HEAD, let the download decide
+            }
+            return code < 400 && (type == null || !type.startsWith("text/html"));
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Write the hits not yet written to the playlist journal and close it. The
+     * shared index is left open for the other playlists using it.
+     */
+    @Override
+    public void close() throws IOException {
+        for (Map.Entry<String, Integer> hit : hits.entrySet()) {
+            String value = journal.get(hit.getKey());
+            if (value != null) {
+                journal.put(hit.getKey(), CachedLink.decode(value).hit(hit.getValue()).encode());
+            }
+        }
+        hits.clear();
+        journal.close();
+    }
+
+    /**
+     * Cached download link with its bookkeeping.
+     */
+    public static class CachedLink {
+
+        /**
+         * The download link.
+         */
+        public final String url;
+
+        /**
+         * Time in milliseconds the link was found.
+         */
+        public final long created;
+
+        /**
+         * Number of times the link was reused.
+         */
+        public final int hits;
+
+        /**
+         * Number of times the link failed since it was found.
+         */
+        public final int failures;
+
+        /**
+         * Create entry for a newly found link.
+         *
+         * @param url the download link
+         */
+        public CachedLink(String url) {
+            this(url, System.currentTimeMillis(), 0, 0);
+        }
+
+        private CachedLink(String url, long created, int hits, int failures) {
+            this.url = url;
+            this.created = created;
+            this.hits = hits;
+            this.failures = failures;
+        }
+
+        /**
+         * @return copy of this entry with one more hit
+         */
+        public CachedLink hit() {
+            return hit(1);
+        }
+
+        /**
+         * @param count the number of hits to add
+         * @return copy of this entry with that many more hits
+         */
+        public CachedLink hit(int count) {
+            return count == 0 ? this : new CachedLink(url, created, hits + count, failures);
+        }
+
+        /**
+         * @return copy of this entry with one more failure
+         */
+        public CachedLink failed() {
+            return new CachedLink(url, created, hits, failures + 1);
+        }
+
+        /**
+         * @return tab separated url, created, hits and failures
+         */
+        public String encode() {
+            return url + "\t" + created + "\t" + hits + "\t" + failures;
+        }
+
+        /**
+         * Decode an entry. Plain links cached before entries had bookkeeping are
+         * treated as created at epoch so they get evicted.
+         *
+         * @param value the encoded entry
+         * @return the decoded entry
+         */
+        public static CachedLink decode(String value) {
+            String[] fields = value.split("\t");
+            try {
+                if (fields.length == 4) {
+                    return new CachedLink(fields[0], Long.parseLong(fields[1]), Integer.parseInt(fields[2]),
+                            Integer.parseInt(fields[3]));
+                }
+            } catch (NumberFormatException ex) {
+                // fall through to legacy entry
+            }
+            return new CachedLink(fields[0], 0, 0, 0);
+        }
+
+    }
+
+}
@@ -0,0 +1,413 @@
+package com.spotripy;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * On-disk hash index of string values keyed by normalised track identity,
+ * shared by all playlists under the download folder. The slot table is memory
+ * mapped so a lookup touches a single slot and record instead of loading the
+ * whole cache. Records are appended to a separate data file and slots point at
+ * their latest record. When opened, a data file mostly made of superseded or
+ * removed records is compacted.
+ *
+ * <pre>
+ * {name}.index  header [magic, capacity, count, unused] then capacity slots of [hash, offset]
+ * {name}.data   records of [key length, value length, key, value]
+ * </pre>
+ */
+public class LinkIndex implements Closeable {
+
+    /**
+     * Default name of the shared download link index.
+     */
+    public static final String DEFAULT_NAME = ".spotripy.links";
+
+    private static final int MAGIC = 0x53504958; // SPIX
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 16;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final double MAX_LOAD = 0.7;
+    private static final long MIN_COMPACT_SIZE = 64 * 1024; // bytes of data file
+    private static final Logger logger = Logger.getLogger(LinkIndex.class.getName());
+
+    private final File indexFile;
+    private final File dataFile;
+    private FileChannel data;
+    private FileChannel index;
+    private MappedByteBuffer slots;
+    private int capacity;
+    private int count;
+
+    private LinkIndex(File indexFile, File dataFile) throws IOException {
+        this.indexFile = indexFile;
+        this.dataFile = dataFile;
+        this.data = new RandomAccessFile(dataFile, "rw").getChannel();
+    }
+
+    /**
+     * Open the named index in the specified folder, creating it if missing.
+     *
+     * @param folder the folder holding the index files
+     * @param name   the base name of the index files
+     * @return the opened index
+     * @throws IOException when the index files can not be opened
+     */
+    public static LinkIndex open(File folder, String name) throws IOException {
+        LinkIndex linkIndex = new LinkIndex(new File(folder, name + ".index"), new File(folder, name + ".data"));
+        linkIndex.map();
+        linkIndex.compactIfWasteful();
+        return linkIndex;
+    }
+
+    private void map() throws IOException {
+        boolean exists = indexFile.exists() && indexFile.length() >= HEADER_SIZE;
+        index = new RandomAccessFile(indexFile, "rw").getChannel();
+        if (exists) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            index.read(header, 0);
+            header.flip();
+            if (header.getInt() == MAGIC) {
+                capacity = header.getInt();
+                count = header.getInt();
+                if (Integer.bitCount(capacity) == 1 && index.size() == HEADER_SIZE + (long) capacity * SLOT_SIZE) {
+                    slots = index.map(FileChannel.MapMode.READ_WRITE, 0, index.size());
+                    return;
+                }
+            }
+            logger.log(Level.WARNING, "Corrupt link index {0}. Starting afresh.", indexFile);
+            index.truncate(0);
+            data.truncate(0);
+        }
+        capacity = INITIAL_CAPACITY;
+        count = 0;
+        slots = index.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+        writeHeader();
+    }
+
+    private void writeHeader() {
+        slots.putInt(0, MAGIC);
+        slots.putInt(4, capacity);
+        slots.putInt(8, count);
+    }
+
+    /**
+     * Get the value stored for a track.
+     *
+     * @param track the track name, normalised before lookup
+     * @return the value or null if not known
+     */
+    public synchronized String get(String track) {
+        String key = normalize(track);
+        int slot = find(key, hash(key));
+        if (slot < 0 || slotHash(slot) == 0) {
+            return null;
+        }
+        try {
+            String value = readRecord(slotOffset(slot))[1];
+            return value.isEmpty() ? null : value;
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Cannot read link index record.", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Store the value for a track.
+     *
+     * @param track the track name, normalised before storing
+     * @param value the value to store
+     */
+    public synchronized void put(String track, String value) {
+        String key = normalize(track);
+        long hash = hash(key);
+        try {
+            int slot = find(key, hash);
+            if (slot < 0) {
+                return;
+            }
+            boolean added = slotHash(slot) == 0;
+            long offset = appendRecord(key, value);
+            slots.putLong(slotPosition(slot), hash);
+            slots.putLong(slotPosition(slot) + 8, offset);
+            if (added) {
+                count++;
+                writeHeader();
+                if (count > capacity * MAX_LOAD) {
+                    grow();
+                }
+            }
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Cannot write link index record.", ex);
+        }
+    }
+
+    /**
+     * Forget the value stored for a track.
+     *
+     * @param track the track name
+     */
+    public synchronized void remove(String track) {
+        if (get(track) != null) {
+            put(track, "");
+        }
+    }
+
+    /**
+     * Forget every track whose stored value is one of the specified values.
+     * Walks the whole table, so meant for occasional clean ups.
+     *
+     * @param values the values to forget
+     * @return the number of tracks forgotten
+     */
+    public synchronized int removeValues(Set<String> values) {
+        int removed = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            if (slotHash(slot) == 0) {
+                continue;
+            }
+            try {
+                String[] record = readRecord(slotOffset(slot));
+                if (values.contains(record[1])) {
+                    slots.putLong(slotPosition(slot) + 8, appendRecord(record[0], ""));
+                    removed++;
+                }
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Cannot update link index record.", ex);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Find the slot holding the key or the empty slot it would go in.
+     *
+     * @return the slot number or -1 if the table is full
+     */
+    private int find(String key, long hash) {
+        int mask = capacity - 1;
+        int slot = (int) (hash & mask);
+        for (int probes = 0; probes < capacity; probes++) {
+            long slotHash = slotHash(slot);
+            if (slotHash == 0) {
+                return slot;
+            }
+            if (slotHash == hash) {
+                try {
+                    if (readRecord(slotOffset(slot))[0].equals(key)) {
+                        return slot;
+                    }
+                } catch (IOException ex) {
+                    logger.log(Level.WARNING, "Cannot read link index record.", ex);
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Double the slot table. Slots are rehashed into a new index file which then
+     * replaces the current one.
+     */
+    private void grow() throws IOException {
+        int newCapacity = capacity * 2;
+        int mask = newCapacity - 1;
+        File tmpFile = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+        try (FileChannel tmp = new RandomAccessFile(tmpFile, "rw").getChannel()) {
+            tmp.truncate(0);
+            MappedByteBuffer grown = tmp.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) newCapacity * SLOT_SIZE);
+            grown.putInt(0, MAGIC);
+            grown.putInt(4, newCapacity);
+            grown.putInt(8, count);
+            for (int slot = 0; slot < capacity; slot++) {
+                long hash = slotHash(slot);
+                if (hash != 0) {
+                    int target = (int) (hash & mask);
+                    while (grown.getLong(HEADER_SIZE + target * SLOT_SIZE) != 0) {
+                        target = (target + 1) & mask;
+                    }
+                    grown.putLong(HEADER_SIZE + target * SLOT_SIZE, hash);
+                    grown.putLong(HEADER_SIZE + target * SLOT_SIZE + 8, slotOffset(slot));
+                }
+            }
+            grown.force();
+        }
+        index.close();
+        Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        map();
+    }
+
+    /**
+     * Compact the index when less than half of the data file is live records.
+     */
+    private void compactIfWasteful() {
+        try {
+            long size = data.size();
+            if (size < MIN_COMPACT_SIZE) {
+                return;
+            }
+            long live = 0;
+            ByteBuffer lengths = ByteBuffer.allocate(8);
+            for (int slot = 0; slot < capacity; slot++) {
+                if (slotHash(slot) != 0) {
+                    lengths.clear();
+                    readFully(lengths, slotOffset(slot));
+                    if (lengths.getInt(4) > 0) {
+                        live += 8 + lengths.getInt(0) + lengths.getInt(4);
+                    }
+                }
+            }
+            if (live * 2 < size) {
+                compact();
+                logger.log(Level.INFO, "Compacted {0} from {1} to {2} bytes",
+                        new Object[] { dataFile.getName(), size, data.size() });
+            }
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Cannot compact link index " + indexFile, ex);
+        }
+    }
+
+    /**
+     * Rewrite the data file with only the latest record of each live key and
+     * rebuild the slot table over it, dropping removed keys. The index file is
+     * deleted before the new files replace the old ones, so an interrupted
+     * compaction leaves an empty index rather than slots pointing into the
+     * wrong data file.
+     */
+    private void compact() throws IOException {
+        int mask = capacity - 1;
+        int live = 0;
+        File tmpIndex = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+        File tmpData = new File(dataFile.getParentFile(), dataFile.getName() + ".tmp");
+        try (FileChannel newIndex = new RandomAccessFile(tmpIndex, "rw").getChannel();
+                FileChannel newData = new RandomAccessFile(tmpData, "rw").getChannel()) {
+            newIndex.truncate(0);
+            newData.truncate(0);
+            MappedByteBuffer table = newIndex.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) capacity * SLOT_SIZE);
+            for (int slot = 0; slot < capacity; slot++) {
+                long hash = slotHash(slot);
+                if (hash == 0) {
+                    continue;
+                }
+                String[] record = readRecord(slotOffset(slot));
+                if (record[1].isEmpty()) {
+                    continue; // removed
+                }
+                int target = (int) (hash & mask);
+                while (table.getLong(HEADER_SIZE + target * SLOT_SIZE) != 0) {
+                    target = (target + 1) & mask;
+                }
+                table.putLong(HEADER_SIZE + target * SLOT_SIZE, hash);
+                table.putLong(HEADER_SIZE + target * SLOT_SIZE + 8, appendRecord(newData, record[0], record[1]));
+                live++;
+            }
+            table.putInt(0, MAGIC);
+            table.putInt(4, capacity);
+            table.putInt(8, live);
+            table.force();
+            newData.force(true);
+        }
+        index.close();
+        data.close();
+        Files.delete(indexFile.toPath());
+        Files.move(tmpData.toPath(), dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(tmpIndex.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        data = new RandomAccessFile(dataFile, "rw").getChannel();
+        map();
+    }
+
+    private int slotPosition(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private long slotHash(int slot) {
+        return slots.getLong(slotPosition(slot));
+    }
+
+    private long slotOffset(int slot) {
+        return slots.getLong(slotPosition(slot) + 8);
+    }
+
+    private long appendRecord(String key, String value) throws IOException {
+        return appendRecord(data, key, value);
+    }
+
+    private static long appendRecord(FileChannel channel, String key, String value) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(8 + keyBytes.length + valueBytes.length);
+        record.putInt(keyBytes.length).putInt(valueBytes.length).put(keyBytes).put(valueBytes).flip();
+        long offset = channel.size();
+        while (record.hasRemaining()) {
+            channel.write(record, offset + record.position());
+        }
+        return offset;
+    }
+
+    private String[] readRecord(long offset) throws IOException {
+        ByteBuffer lengths = ByteBuffer.allocate(8);
+        readFully(lengths, offset);
+        int keyLength = lengths.getInt(0), valueLength = lengths.getInt(4);
+        ByteBuffer record = ByteBuffer.allocate(keyLength + valueLength);
+        readFully(record, offset + 8);
+        byte[] bytes = record.array();
+        return new String[] { new String(bytes, 0, keyLength, StandardCharsets.UTF_8),
+                new String(bytes, keyLength, valueLength, StandardCharsets.UTF_8) };
+    }
+
+    private void readFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (data.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of " + dataFile.getName());
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        slots.force();
+        index.close();
+        data.close();
+    }
+
+    /**
+     * Normalise a track name into its identity, so the same track listed with a
+     * different case, punctuation or spacing maps to the same key. The words
+     * keep their order and repeats, as titles differing only in those are
+     * different tracks.
+     *
+     * @param track the track name including artists
+     * @return lower case words of the track name separated by single spaces
+     */
+    public static String normalize(String track) {
+        return track.toLowerCase(Locale.ROOT).replaceAll("[^\\p{L}\\p{N}]+", " ").trim();
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the key, never 0 as that marks an empty slot.
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= (b & 0xff);
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+}
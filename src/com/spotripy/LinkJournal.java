@@ -0,0 +1,252 @@
+package com.spotripy;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only journal of track to download URL mappings. Every change is
+ * appended as a single line so a crash can at most lose the line being
+ * written, the journal is rewritten with only the live entries once it grows
+ * well past their number.
+ */
+public class LinkJournal implements Closeable {
+
+    /**
+     * Name of the journal file in the playlist folder.
+     */
+    public static final String FILENAME = ".links";
+
+    /**
+     * Name of the serialised HashMap cache the journal replaces.
+     */
+    public static final String LEGACY_FILENAME = ".cache";
+
+    private static final int COMPACT_MIN_RECORDS = 1024;
+    private static final char PUT = '+';
+    private static final char REMOVE = '-';
+    private static final Logger logger = Logger.getLogger(LinkJournal.class.getName());
+
+    private final File file;
+    private final Map<String, String> links = new ConcurrentHashMap<>();
+    private Writer writer;
+    private int records;
+    private boolean torn;
+
+    private LinkJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Open the journal in the specified folder, replaying existing records and
+     * migrating a legacy cache file if found.
+     *
+     * @param folder the playlist folder
+     * @return the opened journal
+     * @throws IOException when the journal can not be opened for appending
+     */
+    public static LinkJournal open(File folder) throws IOException {
+        LinkJournal journal = new LinkJournal(new File(folder, FILENAME));
+        journal.replay();
+        File legacyFile = new File(folder, LEGACY_FILENAME);
+        boolean migrated = legacyFile.exists() && journal.migrate(legacyFile);
+        if (migrated || journal.torn || journal.records > COMPACT_MIN_RECORDS) {
+            journal.compact();
+        } else {
+            journal.openWriter();
+        }
+        if (migrated && !legacyFile.delete()) {
+            logger.log(Level.WARNING, "Cannot remove legacy cache {0}", legacyFile);
+        }
+        return journal;
+    }
+
+    /**
+     * Get the download URL of a track.
+     *
+     * @param track the track name
+     * @return the URL or null if not known
+     */
+    public String get(String track) {
+        return links.get(track);
+    }
+
+    /**
+     * Record the download URL of a track.
+     *
+     * @param track the track name
+     * @param url   the download URL
+     */
+    public synchronized void put(String track, String url) {
+        if (!url.equals(links.put(track, url))) {
+            append(PUT + "\t" + escape(track) + "\t" + escape(url));
+        }
+    }
+
+    /**
+     * Forget the download URL of a track.
+     *
+     * @param track the track name
+     */
+    public synchronized void remove(String track) {
+        if (links.remove(track) != null) {
+            append(REMOVE + "\t" + escape(track));
+        }
+    }
+
+    /**
+     * @return number of tracks with a known download URL
+     */
+    public int size() {
+        return links.size();
+    }
+
+    private void append(String record) {
+        try {
+            writer.write(record);
+            writer.write('\n');
+            writer.flush();
+            records++;
+            if (records > COMPACT_MIN_RECORDS && records > 2 * links.size()) {
+                compact();
+            }
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Cannot append to link journal.", ex);
+        }
+    }
+
+    /**
+     * Rewrite the journal with only the live entries. The new journal is written
+     * to a temporary file then moved over the old one. The writer is reopened
+     * even if the move fails, so later appends go to whichever journal is in
+     * place.
+     *
+     * @throws IOException when the journal can not be rewritten
+     */
+    public synchronized void compact() throws IOException {
+        File tmpFile = new File(file.getParentFile(), FILENAME + ".tmp");
+        try (Writer out = Files.newBufferedWriter(tmpFile.toPath(), StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, String> entry : links.entrySet()) {
+                out.write(PUT + "\t" + escape(entry.getKey()) + "\t" + escape(entry.getValue()) + "\n");
+            }
+        }
+        closeWriter();
+        try {
+            try {
+                Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ex) {
+                Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            records = links.size();
+        } finally {
+            openWriter();
+        }
+    }
+
+    private void replay() {
+        if (!file.exists()) {
+            return;
+        }
+        String content;
+        try {
+            content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Cannot read link journal.", ex);
+            return;
+        }
+        int start = 0, end;
+        // an unterminated last line is a torn write and is ignored
+        while ((end = content.indexOf('\n', start)) >= 0) {
+            String[] fields = content.substring(start, end).split("\t", -1);
+            start = end + 1;
+            records++;
+            if (fields.length == 3 && fields[0].equals(String.valueOf(PUT))) {
+                links.put(unescape(fields[1]), unescape(fields[2]));
+            } else if (fields.length == 2 && fields[0].equals(String.valueOf(REMOVE))) {
+                links.remove(unescape(fields[1]));
+            }
+        }
+        torn = start < content.length();
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean migrate(File legacyFile) {
+        try (InputStream in = new FileInputStream(legacyFile);
+                InputStream buffer = new BufferedInputStream(in);
+                ObjectInput input = new ObjectInputStream(buffer);) {
+            Map<String, String> legacy = (Map<String, String>) input.readObject();
+            for (Map.Entry<String, String> entry : legacy.entrySet()) {
+                links.putIfAbsent(entry.getKey(), entry.getValue());
+            }
+            return true;
+        } catch (ClassNotFoundException | ClassCastException ex) {
+            logger.log(Level.WARNING, "Cannot migrate cache. No interpreter.");
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Cannot migrate cache.");
+        }
+        return false;
+    }
+
+    private void openWriter() throws IOException {
+        writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+    }
+
+    private void closeWriter() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeWriter();
+    }
+
+    /**
+     * Escape characters used as record and field separators.
+     *
+     * @param value the value to escape
+     * @return the escaped value
+     */
+    static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    /**
+     * Reverse of {@link #escape(String)}.
+     *
+     * @param value the escaped value
+     * @return the original value
+     */
+    static String unescape(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+}
@@ -1,6 +1,8 @@
 package com.spotripy;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -21,7 +23,10 @@ public class Mp3Skull implements ChanteyFinder {
     private static final String sizePatternName = "number";
     // Size pattern with flags (?im) CASE_INSENSITIVE AND MULTILINE
     private static final Pattern sizePattern = Pattern.compile("(?im)(?<" + sizePatternName + ">\\d+(.\\d+)) mb");
+    private static final Pattern bitratePattern = Pattern.compile("(?i)(\\d+) kbps");
+    private static final Pattern durationPattern = Pattern.compile("\\b(\\d+):(\\d{2})\\b");
     private static final String searchKey = "fckh";
+    private static final int TIMEOUT = 15000; // 15s, so a cancelled search does not hang on
     private static String searchToken;
     private static String url = "http://mp3skull.com";
 
@@ -49,7 +54,8 @@ public class Mp3Skull implements ChanteyFinder {
      */
     private static String getSearchToken(boolean refresh) throws IOException {
         if (refresh || searchToken == null) {
-            Response res = Jsoup.connect(url).followRedirects(true).userAgent(USER_AGENT).execute();
+            Response res = Jsoup.connect(url).followRedirects(true).userAgent(USER_AGENT).timeout(TIMEOUT)
+                    .execute();
             Mp3Skull.url = res.url().toString(); // update url to redirect site
             Document doc = res.parse();
             searchToken = doc.select("input[name=" + searchKey + "]").val();
@@ -58,15 +64,22 @@ public class Mp3Skull implements ChanteyFinder {
     }
 
     public String getDownloadLink(String songName) throws IOException {
+        return Candidate.firstLink(getCandidates(songName));
+    }
+
+    @Override
+    public List<Candidate> getCandidates(String songName) throws IOException {
         // call search token earlier to also update Mp3Skull URL
         // https://mp3skull.com/mp3/song_name.html doesn't need search token
         String curSearchToken = getSearchToken();
         String searchURL = String.format(Mp3Skull.url + "/search_db.php?q=%s&%s=%s", sanitize(songName), searchKey,
                 curSearchToken);
         Document doc = Jsoup.connect(searchURL).header("Cache-Control", "no-cache").followRedirects(true)
-                .userAgent(USER_AGENT).data("ord", "br").post(); // sort results by bitrate in descending order
+                .userAgent(USER_AGENT).timeout(TIMEOUT)
+                .data("ord", "br").post(); // sort results by bitrate in descending order
         // System.out.println(doc);
         Elements selection = doc.select("#song_html[class^=show]");
+        List<Candidate> candidates = new ArrayList<>();
         for (Element res : selection) {
             String title = res.select("div.mp3_title > b").html();
             String info = res.select("div.left").html();
@@ -75,10 +88,17 @@ public class Mp3Skull implements ChanteyFinder {
                     ? Double.valueOf(matcher.group(sizePatternName))
                     : 0;
             if (size > MIN_FILE_SIZE && acceptable(songName, title)) {
-                return res.select("div.download_button > a").attr("href");
+                Matcher bitrateMatcher = bitratePattern.matcher(info);
+                int bitrate = bitrateMatcher.find() ? Integer.parseInt(bitrateMatcher.group(1)) : 0;
+                Matcher durationMatcher = durationPattern.matcher(info);
+                long durationMs = durationMatcher.find() ? (Integer.parseInt(durationMatcher.group(1)) * 60
+                        + Integer.parseInt(durationMatcher.group(2))) * 1000L : 0;
+                candidates.add(new Candidate(res.select("div.download_button > a").attr("href"), bitrate,
+                        (long) (size * 1024 * 1024), durationMs, score(songName, title)));
             }
         }
-        return null;
+        candidates.sort(Candidate.RANKING);
+        return candidates;
     }
 
     /**
@@ -101,6 +121,26 @@ public class Mp3Skull implements ChanteyFinder {
         return true;
     }
 
+    /**
+     * Score how well the title found on mp3skull matches the song being searched
+     * for, as the share of the words of the song name found in the title.
+     *
+     * @param songname the song being searched for
+     * @param mp3title the title found on mp3skull
+     * @return the score from 0 to 1
+     */
+    private static double score(String songname, String mp3title) {
+        String title = " " + sanitize(mp3title).toLowerCase() + " ";
+        String[] words = sanitize(songname).toLowerCase().trim().split(" +");
+        int found = 0;
+        for (String word : words) {
+            if (title.contains(" " + word + " ")) {
+                found++;
+            }
+        }
+        return words.length == 0 ? 0 : (double) found / words.length;
+    }
+
     /**
      * Replace illegal characters "[^a-zA-Z0-9]+" in a string with " ".
      *
@@ -0,0 +1,315 @@
+package com.spotripy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+/**
+ * Checks a downloaded MP3 as its bytes stream past. Hashes the content and
+ * walks the MPEG audio frame headers, skipping ID3 tags, to count frames, sum
+ * up the duration and notice lost frame sync, so a download is verified
+ * without reading the file again.
+ */
+public class Mp3Verifier {
+
+    private static final int[][] BITRATES = { // kbps by [version/layer][index]
+            { 0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448 }, // MPEG1 layer I
+            { 0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384 }, // MPEG1 layer II
+            { 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320 }, // MPEG1 layer III
+            { 0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256 }, // MPEG2 layer I
+            { 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 } }; // MPEG2 layer II, III
+    private static final int[][] SAMPLE_RATES = { { 11025, 12000, 8000 }, null, { 22050, 24000, 16000 },
+            { 44100, 48000, 32000 } }; // by version id
+    private static final int ID3V2_HEADER = 10;
+    private static final int ID3V1_TAG = 128;
+
+    private final MessageDigest digest = TrackStore.newDigest();
+    private final byte[] header = new byte[ID3V2_HEADER];
+    private int headerLength; // bytes of a frame or tag header collected
+    private long skip; // bytes left of the current frame or tag
+    private long bytes;
+    private long frames;
+    private long junk; // bytes not in a frame or tag
+    private double seconds;
+
+    /**
+     * @return number of bytes checked so far
+     */
+    public long position() {
+        return bytes;
+    }
+
+    /**
+     * Check the next bytes of the file.
+     *
+     * @param buffer the bytes between its position and limit, which are left
+     *               unchanged
+     */
+    public void update(ByteBuffer buffer) {
+        digest.update(buffer.duplicate());
+        int limit = buffer.limit();
+        int i = buffer.position();
+        while (i < limit) {
+            if (skip > 0) {
+                int skipped = (int) Math.min(skip, limit - i);
+                skip -= skipped;
+                i += skipped;
+                continue;
+            }
+            header[headerLength++] = buffer.get(i++);
+            parseHeader();
+        }
+        bytes += limit - buffer.position();
+    }
+
+    /**
+     * Check the rest of a file whose start was already checked, for bytes that
+     * did not stream past in order.
+     *
+     * @param file the file
+     * @throws IOException when the file can not be read
+     */
+    public void catchUp(File file) throws IOException {
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            in.position(bytes);
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            while (in.read(buffer) > 0) {
+                buffer.flip();
+                update(buffer);
+                buffer.clear();
+            }
+        }
+    }
+
+    /**
+     * Check a whole file that did not stream past, like one found in a folder.
+     *
+     * @param file the file
+     * @return the result over the file
+     * @throws IOException when the file can not be read
+     */
+    public static Result check(File file) throws IOException {
+        Mp3Verifier verifier = new Mp3Verifier();
+        verifier.catchUp(file);
+        return verifier.result(-1);
+    }
+
+    /**
+     * Wrap a channel so the bytes read from it are checked.
+     *
+     * @param in the channel read in order from the current position
+     * @return the checking channel
+     */
+    public ReadableByteChannel wrap(ReadableByteChannel in) {
+        return new ReadableByteChannel() {
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                int start = dst.position();
+                int read = in.read(dst);
+                if (read > 0) {
+                    ByteBuffer view = dst.duplicate();
+                    view.position(start).limit(start + read);
+                    update(view);
+                }
+                return read;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return in.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+
+        };
+    }
+
+    /**
+     * @param contentLength the length the server announced or -1
+     * @return the result over all bytes checked
+     */
+    public Result result(long contentLength) {
+        return new Result(TrackStore.toHex(digest.digest()), bytes, contentLength, frames, junk,
+                (long) (seconds * 1000));
+    }
+
+    /**
+     * Act on the header bytes collected so far: skip a complete tag or frame,
+     * wait for more bytes, or drop bytes as junk until they could be a header.
+     */
+    private void parseHeader() {
+        while (headerLength > 0) {
+            if (matches("ID3")) {
+                if (headerLength == ID3V2_HEADER) {
+                    int size = (header[6] & 0x7f) << 21 | (header[7] & 0x7f) << 14 | (header[8] & 0x7f) << 7
+                            | (header[9] & 0x7f); // sync safe
+                    skip = size + ((header[5] & 0x10) != 0 ? ID3V2_HEADER : 0); // footer
+                    headerLength = 0;
+                }
+                return;
+            } else if (matches("TAG")) {
+                if (headerLength == 3) {
+                    skip = ID3V1_TAG - 3;
+                    headerLength = 0;
+                }
+                return;
+            } else if (isFrameStart()) {
+                if (headerLength < 4) {
+                    return;
+                }
+                int length = frameLength();
+                if (length > 4) {
+                    skip = length - 4;
+                    headerLength = 0;
+                    return;
+                }
+            }
+            junk++; // lost sync, look for a header from the next byte
+            System.arraycopy(header, 1, header, 0, --headerLength);
+        }
+    }
+
+    /**
+     * @return true if the collected bytes are, or may still become, the tag id
+     */
+    private boolean matches(String id) {
+        for (int i = 0; i < Math.min(headerLength, id.length()); i++) {
+            if (header[i] != id.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the collected bytes may still be a frame header
+     */
+    private boolean isFrameStart() {
+        return (header[0] & 0xff) == 0xff && (headerLength < 2 || (header[1] & 0xe0) == 0xe0);
+    }
+
+    /**
+     * Decode the collected 4 byte frame header, counting the frame if valid.
+     *
+     * @return the frame length in bytes or 0 if not a valid header
+     */
+    private int frameLength() {
+        int h = (header[0] & 0xff) << 24 | (header[1] & 0xff) << 16 | (header[2] & 0xff) << 8 | (header[3] & 0xff);
+        int version = (h >>> 19) & 3; // 0 MPEG2.5, 1 reserved, 2 MPEG2, 3 MPEG1
+        int layer = (h >>> 17) & 3; // 1 layer III, 2 layer II, 3 layer I, 0 reserved
+        int bitrateIndex = (h >>> 12) & 0xf;
+        int sampleRateIndex = (h >>> 10) & 3;
+        int padding = (h >>> 9) & 1;
+        if ((h & 0xffe00000) != 0xffe00000 || version == 1 || layer == 0 || bitrateIndex == 0 || bitrateIndex == 15
+                || sampleRateIndex == 3) {
+            return 0;
+        }
+        boolean mpeg1 = version == 3;
+        int table = mpeg1 ? 3 - layer : (layer == 3 ? 3 : 4);
+        int bitrate = BITRATES[table][bitrateIndex] * 1000;
+        int sampleRate = SAMPLE_RATES[version][sampleRateIndex];
+        int samples;
+        int length;
+        if (layer == 3) {
+            samples = 384;
+            length = (12 * bitrate / sampleRate + padding) * 4;
+        } else if (layer == 2 || mpeg1) {
+            samples = 1152;
+            length = 144 * bitrate / sampleRate + padding;
+        } else {
+            samples = 576;
+            length = 72 * bitrate / sampleRate + padding;
+        }
+        frames++;
+        seconds += (double) samples / sampleRate;
+        return length;
+    }
+
+    /**
+     * Outcome of checking a file.
+     */
+    public static class Result {
+
+        private static final long MAX_JUNK = 64 * 1024; // 64KB, besides 1% of the file
+        private static final double MIN_DURATION_RATIO = 0.9;
+        private static final double MAX_DURATION_RATIO = 1.5;
+        private static final long DURATION_SLACK = 5000; // 5s
+
+        /**
+         * Hex SHA-256 of the content.
+         */
+        public final String hash;
+
+        /**
+         * Number of bytes checked.
+         */
+        public final long bytes;
+
+        /**
+         * Length the server announced or -1.
+         */
+        public final long contentLength;
+
+        /**
+         * Number of audio frames found.
+         */
+        public final long frames;
+
+        /**
+         * Number of bytes outside frames and tags.
+         */
+        public final long junk;
+
+        /**
+         * Duration of the audio frames in milliseconds.
+         */
+        public final long durationMs;
+
+        private Result(String hash, long bytes, long contentLength, long frames, long junk, long durationMs) {
+            this.hash = hash;
+            this.bytes = bytes;
+            this.contentLength = contentLength;
+            this.frames = frames;
+            this.junk = junk;
+            this.durationMs = durationMs;
+        }
+
+        /**
+         * Find what is wrong with the file, if anything.
+         *
+         * @param expectedDurationMs the track duration or 0 if unknown
+         * @return description of the problem or null if the file is fine
+         */
+        public String problem(long expectedDurationMs) {
+            if (contentLength >= 0 && bytes != contentLength) {
+                return "Length " + bytes + " of " + contentLength + " bytes";
+            } else if (frames == 0) {
+                return "No MP3 frames";
+            } else if (junk > MAX_JUNK + bytes / 100) {
+                return "Lost MP3 frame sync for " + junk + " bytes";
+            } else if (expectedDurationMs <= 0) {
+                return null;
+            } else if (durationMs < expectedDurationMs * MIN_DURATION_RATIO - DURATION_SLACK) {
+                return "Duration " + durationMs / 1000 + "s shorter than " + expectedDurationMs / 1000 + "s";
+            } else if (durationMs > expectedDurationMs * MAX_DURATION_RATIO + DURATION_SLACK) {
+                return "Duration " + durationMs / 1000 + "s longer than " + expectedDurationMs / 1000 + "s";
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return frames + " frames, " + durationMs / 1000 + "s, " + bytes + " bytes, sha256 " + hash;
+        }
+
+    }
+
+}
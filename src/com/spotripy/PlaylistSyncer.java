@@ -5,29 +5,28 @@
  */
 package com.spotripy;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.URL;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.spotripy.SpotifyREST.ApiException;
+import com.spotripy.SpotifyREST.PagingException;
 import com.spotripy.SpotifyREST.Playlist;
-
-import org.json.JSONObject;
+import com.spotripy.SpotifyREST.Track;
+import com.spotripy.TrackPipeline.Job;
 
 /**
  *
@@ -35,13 +34,16 @@ import org.json.JSONObject;
  */
 public class PlaylistSyncer {
 
-    private final static long MIN_FILE_SIZE = 1024 * 1024 * 3; // 3MB
     private final static long MAX_FILE_SIZE = 1024 * 1024 * 20; // 20MB
     private final static String FILE_EXT = "mp3";
+    private final static int DEFAULT_NOT_FOUND_RETRY_HOURS = 24;
     private final static Logger logger = Logger.getLogger(PlaylistSyncer.class.getName());
-    private final static String USER_AGENT = "Mozilla/5.0 (X11; U; Linux i686) Gecko/20071127 Firefox/2.0.0.11";
     private final Configuration config; // playlist sync persitent config
-    private HashMap<String, String> cacheDb; // playlist sync download url cacheDb
+    private Map<String, CompletableFuture<File>> downloads; // tracks queued in this sync by identity
+    private Queue<CompletableFuture<?>> tracksInFlight; // queued and shared tracks of this sync
+    private TrackStore store; // downloaded tracks shared by all playlists
+    private Downloader downloader; // resumable, segmented track downloads
+    private long notFoundRetryMs; // first wait before searching again for a track not found
 
     /**
      * Spotify OAuth Access Token. Empty on initialisation.
@@ -72,32 +74,6 @@ public class PlaylistSyncer {
         config = Configuration.getInstance();
     }
 
-    private void loadCache(String playlistFolder) {
-        File cacheFile = new File(downloadSavePath + File.separator + playlistFolder + File.separator + ".cache");
-        cacheDb = new HashMap<>();
-        try (InputStream file = new FileInputStream(cacheFile);
-                InputStream buffer = new BufferedInputStream(file);
-                ObjectInput input = new ObjectInputStream(buffer);) {
-            // deserialize the List
-            cacheDb = (HashMap<String, String>) input.readObject();
-        } catch (ClassNotFoundException ex) {
-            logger.log(Level.WARNING, "Cannot load cache. No interpreter.");
-        } catch (IOException ex) {
-            logger.log(Level.WARNING, "Cannot load cache.");
-        }
-    }
-
-    private synchronized void saveCache(String playlistName) {
-        File cacheFile = new File(downloadSavePath + File.separator + playlistName + File.separator + ".cache");
-        try (OutputStream file = new FileOutputStream(cacheFile);
-                OutputStream buffer = new BufferedOutputStream(file);
-                ObjectOutput output = new ObjectOutputStream(buffer);) {
-            output.writeObject(cacheDb);
-        } catch (IOException ex) {
-            logger.log(Level.WARNING, "Cannot save cache.");
-        }
-    }
-
     /**
      * Load persistent configuration
      */
@@ -144,7 +120,6 @@ public class PlaylistSyncer {
     }
 
     public boolean sync() throws Exception {
-        ChanteyFinder finder = new EasyYouTube();
         if (downloadSavePath == null || downloadSavePath.isEmpty()) {
             throw new PlaylistSyncException("Download folder not supplied");
         } else {
@@ -161,80 +136,419 @@ public class PlaylistSyncer {
                 throw new PlaylistSyncException("OAuth Access Token not supplied");
             } else {
                 showConfig(); // print out the configuration
-                logger.info("Retrieving playlist");
-                SpotifyREST.AccessToken = spotifyAccessToken;
-                Playlist playlist = null;
-                try {
-                    playlist = SpotifyREST.getPlaylist(userID, playlistID);
-                } catch (Exception ex) {
-                    switch (SpotifyREST.getResponseCode()) {
-                    case 401:
-                        String message = new JSONObject(SpotifyREST.getResponseBody().trim()).getJSONObject("error")
-                                .getString("message");
-                        throw new ExpiredTokenException(message);
-                    default:
-                        throw new IOException("Connection Error", ex);
-                    }
-                }
-                if (playlist == null) {
-                    throw new PlaylistNotFoundException("Playlist not retrieved");
-                } else {
-                    logger.log(Level.INFO, "Playlist: {0} ({1} tracks)",
-                            new Object[] { playlist.name, playlist.tracks.size() });
-                    // --- create playlist folder
-                    logger.info("Preparing playlist download folder");
-                    String folderName = "spotripy." + sanitize(playlist.name);
-                    File playlistFolder = new File(downloadSavePath + File.separator + folderName);
-                    logger.log(Level.INFO, "Path: {0}", playlistFolder.getAbsolutePath());
-                    playlistFolder.mkdir(); // FileUtils creates folder on download
-                    loadCache(folderName); // load cacheDb of download urls
-                    // --- loop through tracks and try downloading
+                SpotifyREST.setRateLimit(config.getIntProperty("spotify-requests-per-second",
+                        SpotifyREST.DEFAULT_RATE_LIMIT));
+                SpotifyREST spotify = new SpotifyREST(spotifyAccessToken,
+                        config.getIntProperty("spotify-page-workers", SpotifyREST.DEFAULT_PARALLEL_PAGES));
+                List<String> playlistIDs = requestSpotify(() -> getPlaylistIDs(spotify));
+                logger.log(Level.INFO, "Retrieving {0} playlist(s)", playlistIDs.size());
+                List<Target> targets = new ArrayList<>();
+                downloads = new ConcurrentHashMap<>();
+                tracksInFlight = new ConcurrentLinkedQueue<>();
+                // --- one shared track store, link index and pipeline for all playlists
+                try (TrackStore trackStore = TrackStore.open(downloadFolder, FILE_EXT);
+                        LinkIndex linkIndex = LinkIndex.open(downloadFolder, LinkIndex.DEFAULT_NAME);
+                        Downloader trackDownloader = Downloader.fromConfig(config);
+                        RacingFinder finder = RacingFinder.fromConfig(config, downloadFolder);
+                        TrackPipeline pipeline = TrackPipeline.fromConfig(config)) {
+                    store = trackStore;
+                    downloader = trackDownloader;
+                    notFoundRetryMs = TimeUnit.HOURS.toMillis(
+                            config.getIntProperty("not-found-retry-hours", DEFAULT_NOT_FOUND_RETRY_HOURS));
                     logger.log(Level.INFO, "Searching for download links using: {0}", new Object[] { finder });
-                    for (String track : playlist.tracks) {
-                        File mp3File = new File(
-                                playlistFolder.getAbsolutePath() + File.separator + sanitize(track) + "." + FILE_EXT);
-                        // Check if file already exists and if
-                        // the file size is larger than the min
-                        if (mp3File.exists() && mp3File.length() > MIN_FILE_SIZE) {
-                            logger.log(Level.INFO, "Track already downloaded: ''{0}'' {1}",
-                                    new Object[] { mp3File.getName(), mp3File.getParent() });
-                        } else {
-                            boolean usingCache = false;
-                            String downloadLink = cacheDb.get(track);
-                            if (downloadLink == null) {
-                                try {
-                                    logger.log(Level.INFO, "Searching for ''{0}''", new Object[] { track });
-                                    downloadLink = finder.getDownloadLink(track);
-                                } catch (IOException ex) {
-                                    // logger.log(Level.INFO, null, ex);
-                                }
-                            } else {
-                                usingCache = true;
-                            }
-                            if (downloadLink == null || downloadLink.isEmpty()) {
-                                logger.log(Level.INFO, "Unable to find: {0}", track);
-                            } else {
-                                try {
-                                    URL downloadURL = new URL(downloadLink);
-                                    logger.log(Level.INFO, "Downloading ''{0}'' {1} {2}",
-                                            new Object[] { track, usingCache ? ">u>" : "<n<", downloadLink });
-                                    copyURLToFile(downloadURL, mp3File);
-                                    cacheDb.put(track, downloadLink);
-                                } catch (Exception ex) {
-                                    logger.log(Level.INFO, null, ex);
-                                    // cacheDb.remove(track); // remove failed URL from cache
-                                } finally {
-                                    saveCache(folderName);
-                                }
+                    for (String id : playlistIDs) {
+                        try {
+                            syncPlaylist(spotify, id, linkIndex, pipeline, finder, targets);
+                        } catch (PlaylistNotFoundException | IOException ex) {
+                            if (playlistIDs.size() == 1) {
+                                throw ex;
                             }
+                            logger.log(Level.WARNING, "Skipping playlist {0}: {1}",
+                                    new Object[] { id, ex.getMessage() });
                         }
                     }
+                    awaitTracks();
+                    trackStore.sweep(); // tracks removed from every playlist
+                } finally {
+                    awaitTracks();
+                    for (Target target : targets) {
+                        target.state.save();
+                        target.cache.close();
+                        target.manifest.save(); // last change to the folder
+                    }
                 }
             }
         }
         return true;
     }
 
+    /**
+     * Wait for the queued and shared tracks of this sync to complete or fail.
+     * Tracks shared between playlists complete after the pipeline drains.
+     */
+    private void awaitTracks() {
+        for (CompletableFuture<?> track : tracksInFlight) {
+            track.handle((result, ex) -> result).join();
+        }
+    }
+
+    /**
+     * Get the ids of the playlists to sync. The playlist id may list several ids
+     * separated by commas, or be "*" for all playlists of the user.
+     *
+     * @param spotify the Spotify API
+     * @return the playlist ids
+     * @throws Exception when the user playlists can not be retrieved
+     */
+    private List<String> getPlaylistIDs(SpotifyREST spotify) throws Exception {
+        if (playlistID.trim().equals("*")) {
+            return spotify.getUserPlaylists(userID);
+        }
+        List<String> playlistIDs = new ArrayList<>();
+        for (String id : playlistID.split(",")) {
+            if (!id.trim().isEmpty()) {
+                playlistIDs.add(id.trim());
+            }
+        }
+        return playlistIDs;
+    }
+
+    /**
+     * Queue the tracks of a playlist that need syncing into the pipeline.
+     *
+     * @param spotify   the Spotify API
+     * @param id        the playlist id
+     * @param linkIndex the link index shared by all playlists
+     * @param pipeline  the pipeline shared by all playlists
+     * @param finder    the finder to search with
+     * @param targets   the playlists being synced, the playlist is added to
+     * @throws Exception when the playlist can not be retrieved
+     */
+    private void syncPlaylist(SpotifyREST spotify, String id, LinkIndex linkIndex, TrackPipeline pipeline,
+            ChanteyFinder finder, List<Target> targets) throws Exception {
+        Playlist playlist = requestSpotify(() -> spotify.getPlaylistInfo(userID, id));
+        if (playlist == null) {
+            throw new PlaylistNotFoundException("Playlist not retrieved");
+        }
+        logger.log(Level.INFO, "Playlist: {0}", playlist.name);
+        // --- create playlist folder
+        logger.info("Preparing playlist download folder");
+        String folderName = "spotripy." + sanitize(playlist.name);
+        File playlistFolder = new File(downloadSavePath + File.separator + folderName);
+        logger.log(Level.INFO, "Path: {0}", playlistFolder.getAbsolutePath());
+        playlistFolder.mkdir(); // FileUtils creates folder on download
+        // load cacheDb of download urls, backed by the shared link index
+        Target target = new Target(playlistFolder,
+                LinkCache.fromConfig(LinkJournal.open(playlistFolder), linkIndex, config),
+                SyncState.load(playlistFolder), FolderManifest.load(playlistFolder, FILE_EXT));
+        targets.add(target);
+        // --- tracks deleted or changed in the folder since synced are synced again
+        List<String> missing = target.state
+                .unsyncMissing(track -> target.manifest.isIntact(trackFile(playlistFolder, track).getName()));
+        if (!missing.isEmpty()) {
+            logger.log(Level.INFO, "{0} synced track(s) missing or changed in the folder", missing.size());
+        }
+        // --- only page through tracks if the playlist changed since last sync
+        if (target.state.isUnchanged(playlist.snapshotId)) {
+            List<String> pending = target.state.pendingTracks();
+            logger.log(Level.INFO, "Playlist unchanged since last sync ({0} tracks, {1} pending)",
+                    new Object[] { target.state.size(), pending.size() });
+            for (String track : pending) {
+                submit(pipeline, target, track, finder);
+            }
+        } else {
+            logger.info("Playlist changed since last sync");
+            // downloads start while later pages are still being fetched
+            Iterator<Track> tracks = spotify.streamPlaylistTracks(userID, id);
+            requestSpotify(() -> {
+                while (tracks.hasNext()) {
+                    Track track = tracks.next();
+                    if (target.state.see(track.name, track.durationMs)) {
+                        submit(pipeline, target, track.name, finder);
+                    }
+                }
+                return null;
+            });
+            for (String track : target.state.commit(playlist.snapshotId)) {
+                File mp3File = trackFile(playlistFolder, track);
+                Downloader.deletePartial(mp3File);
+                target.manifest.remove(mp3File.getName());
+                if (mp3File.delete()) {
+                    logger.log(Level.INFO, "Removed track: ''{0}''", mp3File.getName());
+                }
+            }
+            logger.log(Level.INFO, "Playlist: {0} ({1} tracks)", new Object[] { playlist.name, target.state.size() });
+        }
+    }
+
+    /**
+     * Make a Spotify request, mapping failures to sync exceptions.
+     *
+     * @param request the request to make
+     * @return the request result
+     * @throws ExpiredTokenException when the access token is rejected
+     * @throws IOException           on any other failure
+     */
+    private static <T> T requestSpotify(Callable<T> request) throws ExpiredTokenException, IOException {
+        try {
+            return request.call();
+        } catch (Exception ex) {
+            // track iterators wrap request failures
+            Exception cause = ex instanceof PagingException ? ((PagingException) ex).getCause() : ex;
+            if (cause instanceof ApiException && ((ApiException) cause).getResponseCode() == 401) {
+                throw new ExpiredTokenException(((ApiException) cause).getErrorMessage());
+            }
+            throw new IOException("Connection Error", cause);
+        }
+    }
+
+    /**
+     * Queue a track through the pipeline, logging it if it fails. A track already
+     * queued for another playlist is not resolved or downloaded again, it is
+     * linked in once that download completes.
+     */
+    private void submit(TrackPipeline pipeline, Target target, String track, ChanteyFinder finder) {
+        File file = trackFile(target.folder, track);
+        CompletableFuture<File> shared = new CompletableFuture<>();
+        CompletableFuture<File> source = downloads.putIfAbsent(LinkIndex.normalize(track), shared);
+        if (source != null) {
+            tracksInFlight.add(source.thenAccept(downloaded -> linkShared(downloaded, file, track, target)));
+            return;
+        }
+        tracksInFlight.add(pipeline.submit(new Job(track, file), job -> resolve(job, target, finder),
+                job -> download(job, target), job -> verify(job, target)).thenAccept(job -> {
+                    if (job.getError() != null) {
+                        logger.log(Level.INFO, "Failed '" + job.track + "'", job.getError());
+                    }
+                    shared.complete(job.getError() == null && job.file.exists() ? job.file : null);
+                }));
+    }
+
+    /**
+     * Link a track downloaded for another playlist into this one.
+     *
+     * @param source the downloaded track or null if it could not be downloaded
+     * @param file   the track file of this playlist
+     * @param track  the track name
+     * @param target this playlist
+     */
+    private void linkShared(File source, File file, String track, Target target) {
+        if (source == null) {
+            return;
+        }
+        try {
+            if (!source.equals(file)) {
+                store.link(source, file); // replaces any unverified file
+                target.manifest.put(file.getName(), source.length());
+                logger.log(Level.INFO, "Linked shared track ''{0}'' {1}",
+                        new Object[] { file.getName(), file.getParent() });
+            }
+            markStored(target, track);
+        } catch (IOException ex) {
+            logger.log(Level.INFO, "Failed '" + track + "'", ex);
+        }
+    }
+
+    private static File trackFile(File playlistFolder, String track) {
+        return new File(playlistFolder.getAbsolutePath() + File.separator + sanitize(track) + "." + FILE_EXT);
+    }
+
+    /**
+     * Mark a track linked from the store as verified with its stored hash, or as
+     * only done if the store does not know it.
+     */
+    private void markStored(Target target, String track) {
+        String hash = store.getHash(track);
+        if (hash != null) {
+            target.state.markVerified(track, hash);
+        } else {
+            target.state.markDone(track);
+        }
+    }
+
+    /**
+     * Verify a track file found in the playlist folder with no record of being
+     * verified, so it is checked once rather than trusted by its size. Bad files
+     * are deleted.
+     *
+     * @param job    the track job
+     * @param target the playlist of the track
+     * @return true if the file is good
+     */
+    private boolean verifyExisting(Job job, Target target) {
+        try {
+            Mp3Verifier.Result verification = Mp3Verifier.check(job.file);
+            String problem = verification.problem(target.state.getDurationMs(job.track));
+            if (problem == null) {
+                logger.log(Level.INFO, "Track already downloaded: ''{0}'' {1}",
+                        new Object[] { job.file.getName(), verification });
+                keep(job, target, verification);
+                return true;
+            }
+            logger.log(Level.INFO, "Replacing ''{0}'': {1}", new Object[] { job.file.getName(), problem });
+        } catch (IOException ex) {
+            logger.log(Level.INFO, "Replacing unreadable ''{0}'': {1}",
+                    new Object[] { job.file.getName(), ex.getMessage() });
+        }
+        store.discard(job.track, job.file);
+        target.manifest.remove(job.file.getName());
+        job.file.delete();
+        return false;
+    }
+
+    /**
+     * Keep a verified track file: move it into the store leaving a link in the
+     * playlist folder and record its hash in the sync state.
+     */
+    private void keep(Job job, Target target, Mp3Verifier.Result verification) {
+        try {
+            store.add(job.track, job.file, verification.hash);
+        } catch (IOException ex) {
+            // the track stays a plain file in the playlist folder
+            logger.log(Level.WARNING, "Cannot store track '" + job.track + "'", ex);
+        }
+        target.state.markVerified(job.track, verification.hash);
+        target.manifest.put(job.file.getName(), verification.bytes);
+    }
+
+    /**
+     * Resolve stage. Verifies track files already in the folder once, links in
+     * tracks already in the store and looks up the download link in the cache
+     * before searching with the finder.
+     *
+     * @param job    the track job
+     * @param target the playlist of the track
+     * @param finder the finder to search with
+     */
+    private void resolve(Job job, Target target, ChanteyFinder finder) {
+        if (target.manifest.contains(job.file.getName()) && verifyExisting(job, target)) {
+            job.finish();
+            return;
+        }
+        File stored = store.lookup(job.track);
+        if (stored != null) {
+            try {
+                store.link(stored, job.file);
+                target.manifest.put(job.file.getName(), stored.length());
+                logger.log(Level.INFO, "Linked stored track ''{0}'' {1}",
+                        new Object[] { job.file.getName(), job.file.getParent() });
+                markStored(target, job.track);
+                job.finish();
+                return;
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Cannot link stored track '" + job.track + "'", ex);
+            }
+        }
+        String downloadLink = target.cache.get(job.track);
+        if (downloadLink == null) {
+            long retryAt = target.state.getRetryAt(job.track);
+            if (retryAt > System.currentTimeMillis()) {
+                logger.log(Level.FINE, "Not searching for ''{0}'' before {1}", new Object[] { job.track,
+                        new Date(retryAt) });
+                job.finish();
+                return;
+            }
+            try {
+                logger.log(Level.INFO, "Searching for ''{0}''", new Object[] { job.track });
+                List<Candidate> candidates = finder.getCandidates(job.track);
+                IOException failure = null;
+                for (int i = 0; i < candidates.size() && downloadLink == null; i++) {
+                    try {
+                        downloadLink = candidates.get(i).getLink();
+                        job.fallbacks = candidates.subList(i + 1, candidates.size());
+                    } catch (IOException ex) {
+                        logger.log(Level.INFO, "Candidate failed {0}: {1}", new Object[] { candidates.get(i),
+                                ex.getMessage() });
+                        failure = ex;
+                    }
+                }
+                if (downloadLink == null && failure != null) {
+                    throw failure; // no candidate could be reached
+                }
+                if (candidates.isEmpty() && notFoundRetryMs > 0) {
+                    retryAt = target.state.markNotFound(job.track, notFoundRetryMs);
+                    logger.log(Level.INFO, "Searching again for ''{0}'' after {1}", new Object[] { job.track,
+                            new Date(retryAt) });
+                }
+            } catch (IOException ex) {
+                // a failed search is not a miss, the track is searched again next time
+                logger.log(Level.INFO, "Search failed for ''{0}'': {1}", new Object[] { job.track, ex.getMessage() });
+            }
+        } else {
+            job.usingCache = true;
+        }
+        if (downloadLink == null || downloadLink.isEmpty()) {
+            logger.log(Level.INFO, "Unable to find: {0}", job.track);
+            job.finish();
+        } else {
+            job.downloadLink = downloadLink;
+        }
+    }
+
+    /**
+     * Download stage. Downloads the resolved link to the track file, resuming
+     * any partial download of it. When the download fails or is rejected the
+     * next candidate found for the track is downloaded instead, getting its
+     * link only then.
+     *
+     * @param job    the track job
+     * @param target the playlist of the track
+     * @throws Exception when the download of the last candidate fails
+     */
+    private void download(Job job, Target target) throws Exception {
+        Iterator<Candidate> fallbacks = job.fallbacks.iterator();
+        while (true) {
+            try {
+                if (job.downloadLink == null) {
+                    job.downloadLink = fallbacks.next().getLink(); // next best, without searching again
+                }
+                logger.log(Level.INFO, "Downloading ''{0}'' {1} {2}",
+                        new Object[] { job.track, job.usingCache ? ">u>" : "<n<", job.downloadLink });
+                job.verification = downloader.copyURLToFile(new URL(job.downloadLink), job.file);
+                String problem = job.verification.problem(target.state.getDurationMs(job.track));
+                if (problem == null || !fallbacks.hasNext()) {
+                    return; // the verify stage acts on the last problem
+                }
+                logger.log(Level.INFO, "Rejected ''{0}'': {1}", new Object[] { job.downloadLink, problem });
+                job.file.delete();
+            } catch (Exception ex) {
+                if (!fallbacks.hasNext()) {
+                    target.cache.fail(job.track); // count failed URL against the cache entry
+                    throw ex;
+                }
+                logger.log(Level.INFO, "Download failed ''{0}'': {1}", new Object[] { job.downloadLink, ex });
+                Downloader.deletePartial(job.file);
+            }
+            job.downloadLink = null;
+        }
+    }
+
+    /**
+     * Verify stage. Checks the download streamed as a whole MP3 of about the
+     * track duration. Caches the download link of good files, moves them into
+     * the store leaving a link in the playlist folder and records their hash in
+     * the sync state. Bad files are deleted.
+     *
+     * @param job    the track job
+     * @param target the playlist of the track
+     * @throws TrackDownloadException when the downloaded file is incomplete
+     */
+    private void verify(Job job, Target target) throws TrackDownloadException {
+        Mp3Verifier.Result verification = job.verification;
+        String problem = verification == null ? "Not checked"
+                : verification.problem(target.state.getDurationMs(job.track));
+        if (problem == null) {
+            logger.log(Level.INFO, "Verified ''{0}'' {1}", new Object[] { job.file.getName(), verification });
+            target.cache.put(job.track, job.downloadLink);
+            keep(job, target, verification);
+        } else {
+            target.cache.fail(job.track); // count failed URL against the cache entry
+            target.manifest.remove(job.file.getName());
+            job.file.delete();
+            throw new TrackDownloadException(problem + " " + job.file.getName());
+        }
+    }
+
     /**
      * Remove unwanted characters for filenames.
      *
@@ -246,24 +560,6 @@ public class PlaylistSyncer {
         return name.replaceAll("[^a-zA-Z0-9.-]+", "_");
     }
 
-    private static void copyURLToFile(URL url, File file) throws Exception {
-        // FileUtils.copyURLToFile(url, file); // Apache Commons
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.addRequestProperty("Accept", "*/*");
-        conn.setRequestProperty("User-Agent", USER_AGENT);
-        conn.setRequestProperty("Connection", "keep-alive");
-        conn.setRequestProperty("Pragma", "no-cache");
-        conn.setInstanceFollowRedirects(false);
-        Long bytesWritten;
-        ReadableByteChannel readChannel = Channels.newChannel(conn.getInputStream());
-        try (FileOutputStream fos = new FileOutputStream(file.getAbsolutePath())) {
-            logger.log(Level.INFO, "Download started {0}", file.getName());
-            bytesWritten = fos.getChannel().transferFrom(readChannel, 0, Long.MAX_VALUE);
-            logger.log(Level.INFO, "Content Length: {0}. Bytes Written: {1}.",
-                    new Object[] { conn.getContentLengthLong(), bytesWritten });
-        }
-    }
-
     /**
      * Playlist Sync Exception Class
      */
@@ -288,6 +584,26 @@ public class PlaylistSyncer {
 
     }
 
+    /**
+     * Playlist being synced, with its folder, download link cache, sync state
+     * and folder manifest.
+     */
+    private static class Target {
+
+        private final File folder;
+        private final LinkCache cache;
+        private final SyncState state;
+        private final FolderManifest manifest;
+
+        private Target(File folder, LinkCache cache, SyncState state, FolderManifest manifest) {
+            this.folder = folder;
+            this.cache = cache;
+            this.state = state;
+            this.manifest = manifest;
+        }
+
+    }
+
     public static class InaccessibleFolderException extends PlaylistSyncException {
 
         private static final long serialVersionUID = 1;
@@ -0,0 +1,300 @@
+package com.spotripy;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finder racing several finders for the same song. The first finder is asked
+ * straight away and the next one is started when the running ones fail, find
+ * nothing, or take longer than a percentile of their past search times. The
+ * first finder to find candidates wins and the searches still running are
+ * cancelled, so one slow search does not hold up the track.
+ */
+public class RacingFinder implements ChanteyFinder, Closeable {
+
+    /**
+     * Default finders to race, in the order they are started.
+     */
+    public static final String DEFAULT_FINDERS = "easyyoutube";
+
+    /**
+     * Default percentile of past search times after which the next finder is
+     * started.
+     */
+    public static final int DEFAULT_HEDGE_PERCENTILE = 90;
+
+    /**
+     * Default seconds a blocking search waits for the race before giving up.
+     */
+    public static final int DEFAULT_TIMEOUT_SECONDS = 60;
+
+    private static final long DEFAULT_HEDGE_DELAY = 3000; // ms, until enough search times are known
+    private static final int MIN_SAMPLES = 8;
+    private static final int MAX_SAMPLES = 100;
+    private static final Logger logger = Logger.getLogger(RacingFinder.class.getName());
+
+    private final List<Backend> backends = new ArrayList<>();
+    private final int hedgePercentile;
+    private final long timeoutMs;
+    private final ScheduledExecutorService hedges;
+
+    /**
+     * Create finder.
+     *
+     * @param finders         the finders to race, in the order they are started
+     * @param hedgePercentile percentile of past search times of a finder after
+     *                        which the next one is started, 0 or less to start
+     *                        all at once
+     * @param timeoutMs       ms a blocking search waits for the race, 0 or less
+     *                        to wait until it ends
+     */
+    public RacingFinder(List<ChanteyFinder> finders, int hedgePercentile, long timeoutMs) {
+        if (finders.isEmpty()) {
+            throw new IllegalArgumentException("No finders to race");
+        }
+        for (ChanteyFinder finder : finders) {
+            backends.add(new Backend(finder));
+        }
+        this.hedgePercentile = Math.min(hedgePercentile, 100);
+        this.timeoutMs = timeoutMs;
+        this.hedges = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "spotripy-hedges");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Create finder with the finders and hedge percentile read from
+     * configuration.
+     *
+     * @param config         the configuration to read "finders",
+     *                       "finder-hedge-percentile" and
+     *                       "finder-timeout-seconds" from
+     * @param downloadFolder the download folder the finders keep their caches in
+     * @return the new finder
+     * @throws IOException when a finder cache can not be opened
+     */
+    public static RacingFinder fromConfig(Configuration config, File downloadFolder) throws IOException {
+        List<ChanteyFinder> finders = new ArrayList<>();
+        for (String name : config.getProperty("finders", DEFAULT_FINDERS).split(",")) {
+            ChanteyFinder finder = byName(name.trim(), config, downloadFolder);
+            if (finder != null) {
+                finders.add(finder);
+            } else if (!name.trim().isEmpty()) {
+                logger.log(Level.WARNING, "Unknown finder ''{0}''. Skipping it.", name.trim());
+            }
+        }
+        if (finders.isEmpty()) {
+            logger.log(Level.WARNING, "No known finders. Using {0}.", DEFAULT_FINDERS);
+            finders.add(byName(DEFAULT_FINDERS, config, downloadFolder));
+        }
+        return new RacingFinder(finders, config.getIntProperty("finder-hedge-percentile", DEFAULT_HEDGE_PERCENTILE),
+                config.getIntProperty("finder-timeout-seconds", DEFAULT_TIMEOUT_SECONDS) * 1000L);
+    }
+
+    /**
+     * @param name           the configured finder name
+     * @param config         the configuration
+     * @param downloadFolder the download folder
+     * @return new finder of that name or null if there is none
+     * @throws IOException when the finder cache can not be opened
+     */
+    @SuppressWarnings("deprecation")
+    private static ChanteyFinder byName(String name, Configuration config, File downloadFolder) throws IOException {
+        switch (name.toLowerCase()) {
+        case "easyyoutube":
+            return EasyYouTube.fromConfig(config, downloadFolder);
+        case "mp3skull":
+            return new Mp3Skull();
+        default:
+            return null;
+        }
+    }
+
+    @Override
+    public String getDownloadLink(String songName) throws IOException {
+        return Candidate.firstLink(getCandidates(songName));
+    }
+
+    @Override
+    public List<Candidate> getCandidates(String songName) throws IOException {
+        return AsyncFinders.await(findAllAsync(songName), timeoutMs);
+    }
+
+    @Override
+    public CompletableFuture<List<Candidate>> findAllAsync(String songName) {
+        return new Race(songName).start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        hedges.shutdownNow();
+        for (Backend backend : backends) {
+            if (backend.finder instanceof Closeable) {
+                ((Closeable) backend.finder).close();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        List<String> names = new ArrayList<>();
+        for (Backend backend : backends) {
+            names.add(backend.finder.getClass().getSimpleName());
+        }
+        return names.size() == 1 ? names.get(0) : "race of " + names;
+    }
+
+    /**
+     * Race of the finders for a single song.
+     */
+    private class Race {
+
+        private final String songName;
+        private final CompletableFuture<List<Candidate>> result = new CompletableFuture<>();
+        private final List<CompletableFuture<List<Candidate>>> started = new ArrayList<>();
+        private final List<Long> startTimes = new ArrayList<>(); // ns, of the started searches
+        private int running;
+        private Throwable error;
+        private ScheduledFuture<?> hedge;
+
+        private Race(String songName) {
+            this.songName = songName;
+        }
+
+        private CompletableFuture<List<Candidate>> start() {
+            result.whenComplete((found, ex) -> cancel()); // won, failed, cancelled or timed out
+            startNext();
+            return result;
+        }
+
+        /**
+         * Start the next finder and schedule the one after it as hedge.
+         */
+        private synchronized void startNext() {
+            if (result.isDone() || started.size() == backends.size()) {
+                return;
+            }
+            if (hedge != null) {
+                hedge.cancel(false);
+            }
+            Backend backend = backends.get(started.size());
+            startTimes.add(System.nanoTime());
+            CompletableFuture<List<Candidate>> search = backend.find(songName);
+            started.add(search);
+            running++;
+            if (started.size() < backends.size()) {
+                hedge = hedges.schedule(this::startNext, backend.hedgeDelay(), TimeUnit.MILLISECONDS);
+            }
+            search.whenComplete(this::finished);
+        }
+
+        private synchronized void finished(List<Candidate> found, Throwable ex) {
+            running--;
+            if (found != null && !found.isEmpty()) {
+                result.complete(found);
+                return;
+            }
+            Throwable cause = ex instanceof CompletionException ? ex.getCause() : ex;
+            if (cause != null && !(cause instanceof CancellationException)) {
+                if (!(cause instanceof IOException)) {
+                    logger.log(Level.WARNING, "Finder failed for '" + songName + "'", cause);
+                }
+                error = cause;
+            }
+            if (started.size() < backends.size()) {
+                startNext(); // found nothing, try the next finder without waiting
+            } else if (running == 0) {
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(Collections.emptyList());
+                }
+            }
+        }
+
+        private synchronized void cancel() {
+            if (hedge != null) {
+                hedge.cancel(false);
+            }
+            boolean won = !result.isCompletedExceptionally();
+            for (int i = 0; i < started.size(); i++) {
+                CompletableFuture<List<Candidate>> search = started.get(i);
+                if (!won && !search.isDone()) {
+                    // timed out, the search took at least this long
+                    backends.get(i).record((System.nanoTime() - startTimes.get(i)) / 1000000);
+                }
+                search.cancel(true); // losers of the race
+            }
+        }
+
+    }
+
+    /**
+     * A raced finder with its recent search times.
+     */
+    private class Backend {
+
+        private final ChanteyFinder finder;
+        private final long[] samples = new long[MAX_SAMPLES]; // ms, ring buffer
+        private int sampleCount;
+
+        private Backend(ChanteyFinder finder) {
+            this.finder = finder;
+        }
+
+        /**
+         * Start a search, recording its time when it finds candidates or
+         * fails. Cancelled searches are not recorded here as a losing search
+         * says nothing about how long it would have taken.
+         */
+        private CompletableFuture<List<Candidate>> find(String songName) {
+            long start = System.nanoTime();
+            CompletableFuture<List<Candidate>> search = finder.findAllAsync(songName);
+            search.whenComplete((found, ex) -> {
+                Throwable cause = ex instanceof CompletionException ? ex.getCause() : ex;
+                if (!(cause instanceof CancellationException)) {
+                    record((System.nanoTime() - start) / 1000000);
+                }
+            });
+            return search;
+        }
+
+        private synchronized void record(long millis) {
+            samples[sampleCount++ % MAX_SAMPLES] = millis;
+        }
+
+        /**
+         * @return ms to wait on this finder before starting the next one
+         */
+        private synchronized long hedgeDelay() {
+            if (hedgePercentile <= 0) {
+                return 0;
+            }
+            int count = Math.min(sampleCount, MAX_SAMPLES);
+            if (count < MIN_SAMPLES) {
+                return DEFAULT_HEDGE_DELAY;
+            }
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.ceil(hedgePercentile / 100.0 * count) - 1];
+        }
+
+    }
+
+}
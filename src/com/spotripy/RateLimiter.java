@@ -0,0 +1,113 @@
+package com.spotripy;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket rate limiter. Callers block in {@link #acquire(double)} until
+ * the bucket holds enough permits, so requests are queued rather than failed.
+ * The rate adapts to throttling by the server, being halved on each throttled
+ * request and crept back up towards the maximum on success.
+ */
+public class RateLimiter {
+
+    private static final double MIN_RATE_FRACTION = 0.05;
+    private static final double RECOVER_FRACTION = 0.05;
+
+    private double maxRate;
+    private double rate;
+    private double burst;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+    private long pausedUntil = refilledAt;
+
+    /**
+     * Create limiter allowing the rate with bursts of up to a second worth of
+     * permits.
+     *
+     * @param rate permits per second, 0 or less for no limit
+     */
+    public RateLimiter(double rate) {
+        setRate(rate);
+        tokens = burst;
+    }
+
+    /**
+     * Change the maximum rate.
+     *
+     * @param rate permits per second, 0 or less for no limit
+     */
+    public synchronized void setRate(double rate) {
+        this.maxRate = rate;
+        this.rate = rate;
+        this.burst = Math.max(1, rate);
+        this.tokens = Math.min(tokens, burst);
+        notifyAll();
+    }
+
+    /**
+     * @return the current permits per second, 0 or less if unlimited
+     */
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    /**
+     * Take permits from the bucket, waiting as long as needed. Requests larger
+     * than the bucket are let through once it is full and put it in debt so the
+     * average rate holds.
+     *
+     * @param permits number of permits needed
+     * @throws InterruptedException when interrupted while waiting
+     */
+    public synchronized void acquire(double permits) throws InterruptedException {
+        while (true) {
+            long now = System.nanoTime();
+            refill(now);
+            long wait = pausedUntil - now;
+            if (wait <= 0 && maxRate > 0 && tokens < Math.min(permits, burst)) {
+                wait = (long) ((Math.min(permits, burst) - tokens) / rate * TimeUnit.SECONDS.toNanos(1));
+            }
+            if (wait <= 0) {
+                if (maxRate > 0) {
+                    tokens -= permits;
+                }
+                return;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, wait);
+        }
+    }
+
+    /**
+     * Stop handing out permits for a while and halve the rate, for when the
+     * server reports too many requests.
+     *
+     * @param millis time to pause for, e.g. from a Retry-After header
+     */
+    public synchronized void backoff(long millis) {
+        long now = System.nanoTime();
+        pausedUntil = Math.max(pausedUntil, now + TimeUnit.MILLISECONDS.toNanos(millis));
+        if (maxRate > 0) {
+            refill(now);
+            rate = Math.max(maxRate * MIN_RATE_FRACTION, rate / 2);
+            tokens = Math.min(tokens, 0);
+        }
+    }
+
+    /**
+     * Creep the rate back up towards the maximum after a request succeeded.
+     */
+    public synchronized void succeeded() {
+        if (maxRate > 0 && rate < maxRate) {
+            refill(System.nanoTime());
+            rate = Math.min(maxRate, rate + maxRate * RECOVER_FRACTION);
+        }
+    }
+
+    private void refill(long now) {
+        if (maxRate > 0) {
+            tokens = Math.min(burst, tokens + (now - refilledAt) * rate / TimeUnit.SECONDS.toNanos(1));
+        }
+        refilledAt = now;
+    }
+
+}
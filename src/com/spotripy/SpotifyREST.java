@@ -4,25 +4,34 @@
  */
 package com.spotripy;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.MalformedURLException;
-import java.net.Proxy;
-import java.net.URL;
-import java.util.HashMap;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import javax.net.ssl.HttpsURLConnection;
-
-import org.json.JSONArray;
 import org.json.JSONObject;
 
 /**
@@ -33,106 +42,138 @@ import org.json.JSONObject;
 public class SpotifyREST {
 
     /**
-     * OAuth 2.0 Access Token
+     * Client shared by all instances. Pools keep-alive connections per host and
+     * negotiates HTTP/2 with the API so concurrent requests share connections.
+     */
+    private static final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2)
+            .connectTimeout(Duration.ofSeconds(30)).followRedirects(HttpClient.Redirect.NORMAL).build();
+
+    /**
+     * Default max number of playlist pages fetched at once
+     */
+    public static final int DEFAULT_PARALLEL_PAGES = 4;
+
+    /**
+     * Default max number of requests per second
+     */
+    public static final int DEFAULT_RATE_LIMIT = 10;
+
+    /**
+     * Limiter shared by all instances, all requests count against the same
+     * application limit.
      */
-    public static String AccessToken;
-    public static HttpsURLConnection conn;
+    private static final RateLimiter limiter = new RateLimiter(DEFAULT_RATE_LIMIT);
 
-    private static String lastResponse;
+    private static final int MAX_RETRIES = 8;
+    private static final long INITIAL_BACKOFF = 1000; // 1s
+    private static final long MAX_BACKOFF = 60000; // 1min
+    private static final int PAGE_SIZE = 100;
+    // only request the parts of the playlist that are read
+    private static final String INFO_FIELDS = "name,snapshot_id";
+    private static final String PAGE_FIELDS = "total,limit,items(track(name,duration_ms,artists(name)))";
+    private static final String USER_PLAYLISTS_FIELDS = "next,items(id)";
     private static final Logger logger = Logger.getLogger("SpotifyREST");
 
     /**
-     * Create new HttpsURLConnection with defined URL.
+     * OAuth 2.0 Access Token
+     */
+    private final String accessToken;
+
+    /**
+     * Max number of playlist pages fetched at once
+     */
+    private final int parallelPages;
+
+    /**
+     * Create API instance authorised by the access token.
      *
-     * @param url String URL
-     * @return new HttpsURLConnection or NULL on failure
-     * @throws MalformedURLException if URL is not properly formatted
+     * @param accessToken OAuth 2.0 Access Token
      */
-    private static HttpsURLConnection connect(String url) throws MalformedURLException {
-        return connect(url, null);
+    public SpotifyREST(String accessToken) {
+        this(accessToken, DEFAULT_PARALLEL_PAGES);
     }
 
     /**
-     * Create new HttpsURLConnection with defined URL through proxy.
+     * Create API instance authorised by the access token.
      *
-     * @param url   String URL
-     * @param proxy Proxy configuration
-     * @return new HttpsURLConnection or NULL on failure
-     * @throws MalformedURLException if URL is not properly formatted
-     */
-    private static HttpsURLConnection connect(String url, Proxy proxy) throws MalformedURLException {
-        URL apiUrl = new URL(url);
-        Proxy connProxy = proxy == null ? Proxy.NO_PROXY : proxy;
-        try {
-            return (HttpsURLConnection) apiUrl.openConnection(connProxy);
-        } catch (IOException ex) {
-            logger.log(Level.SEVERE, null, ex);
-        }
-        return null;
+     * @param accessToken   OAuth 2.0 Access Token
+     * @param parallelPages max number of playlist pages fetched at once
+     */
+    public SpotifyREST(String accessToken, int parallelPages) {
+        this.accessToken = accessToken;
+        this.parallelPages = parallelPages;
     }
 
     /**
-     * Get response code of last request.
+     * Perform get request. Instances hold no response state so may be shared
+     * between threads.
      *
-     * @return response code or 400 on error
+     * @param url the URL endpoint
+     * @return HTTP response body as string
+     * @throws ApiException         if the API responds with an error status
+     * @throws IOException          if the request fails
+     * @throws InterruptedException if interrupted waiting for the response
      */
-    public static int getResponseCode() {
-        try {
-            return conn.getResponseCode();
-        } catch (IOException ex) {
-            return 400;
+    private String doGet(String url) throws IOException, InterruptedException {
+        try (InputStream body = doGetStream(url)) {
+            return new String(body.readAllBytes(), StandardCharsets.UTF_8);
         }
     }
 
     /**
-     * Get raw response body of last request.
+     * Perform get request, leaving the response body to be read as a stream.
      *
-     * @return response body or null on error
+     * @param url the URL endpoint
+     * @return HTTP response body stream, to be closed by the caller
+     * @throws ApiException         if the API responds with an error status
+     * @throws IOException          if the request fails
+     * @throws InterruptedException if interrupted waiting for the response
      */
-    public static String getResponseBody() {
-        try {
-            if (conn != null) {
-                return (lastResponse == null) ? buildResponse(conn.getErrorStream()) : lastResponse;
+    private InputStream doGetStream(String url) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url)).GET().header("Accept", "application/json")
+                .header("Authorization", "Bearer " + accessToken).build();
+        for (int attempt = 0;; attempt++) {
+            limiter.acquire(1);
+            HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            int code = response.statusCode();
+            if (code < 300) {
+                limiter.succeeded();
+                return response.body();
+            }
+            String body;
+            try (InputStream in = response.body()) {
+                body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
             }
-        } catch (IOException ex) {
-            logger.log(Level.WARNING, null, ex);
+            boolean throttled = code == 429 || code == 503;
+            if (!throttled || attempt >= MAX_RETRIES) {
+                logger.log(Level.FINE, "{0} {1}", new Object[] { code, url });
+                throw new ApiException(code, body);
+            }
+            // wait as long as asked, or back off exponentially when not told
+            long retryAfter = response.headers().firstValue("Retry-After").map(SpotifyREST::parseRetryAfter)
+                    .orElse(-1L);
+            long wait = retryAfter >= 0 ? retryAfter : Math.min(MAX_BACKOFF, INITIAL_BACKOFF << attempt);
+            logger.log(Level.INFO, "Rate limited by Spotify, retrying in {0}ms", wait);
+            limiter.backoff(wait);
         }
-        return null;
     }
 
-    /**
-     * Perform get operation on connection.
-     *
-     * @param url     the URL endpoint
-     * @param headers Map of headers to values
-     * @return HTTP response as string
-     * @throws Exception
-     */
-    private static String doGet(String url, Map<String, String> headers) throws Exception {
-        lastResponse = null;
+    private static long parseRetryAfter(String value) {
         try {
-            conn = connect(url);
-        } catch (MalformedURLException ex) {
-            logger.log(Level.SEVERE, null, ex);
-        }
-        conn.setRequestMethod("GET");
-        for (Map.Entry<String, String> entry : headers.entrySet()) {
-            conn.setRequestProperty(entry.getKey(), entry.getValue());
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim()));
+        } catch (NumberFormatException ex) {
+            return -1;
         }
-        lastResponse = buildResponse(conn.getInputStream());
-        return lastResponse;
     }
 
-    private static String buildResponse(InputStream is) throws IOException {
-        StringBuilder response;
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(is))) {
-            String inputLine;
-            response = new StringBuilder();
-            while ((inputLine = in.readLine()) != null) {
-                response.append(inputLine);
-            }
-        }
-        return response.toString();
+    /**
+     * Set the max number of requests per second made to the API by all
+     * instances.
+     *
+     * @param requestsPerSecond the request rate, 0 or less for no limit
+     */
+    public static void setRateLimit(double requestsPerSecond) {
+        limiter.setRate(requestsPerSecond);
     }
 
     /**
@@ -143,44 +184,196 @@ public class SpotifyREST {
      * @return Playlist with songs e.g. "Yoga - Janelle Monae ft. Jidenna"
      * @throws Exception
      */
-    public static Playlist getPlaylist(String userID, String playlistID) throws Exception {
+    public Playlist getPlaylist(String userID, String playlistID) throws Exception {
+        Playlist playlist = getPlaylistInfo(userID, playlistID);
+        for (String track : getPlaylistTracks(userID, playlistID)) {
+            playlist.addTrack(track);
+        }
+        return playlist;
+    }
+
+    /**
+     * Get name and snapshot id of specified playlist without its tracks.
+     *
+     * @param userID     spotify user id
+     * @param playlistID spotify playlist id
+     * @return Playlist with no songs
+     * @throws Exception
+     */
+    public Playlist getPlaylistInfo(String userID, String playlistID) throws Exception {
         // build url
-        String url = String.format("https://api.spotify.com/v1/users/%s/playlists/%s", userID, playlistID);
-        // set headers
-        Map<String, String> headers = new HashMap<>();
-        headers.put("Accept", "application/json");
-        headers.put("Authorization", "Bearer " + AccessToken);
-        // get playlist name
-        String response = doGet(url, headers);
+        String url = String.format("https://api.spotify.com/v1/users/%s/playlists/%s?fields=%s", userID, playlistID,
+                INFO_FIELDS);
+        // get playlist name and version
+        String response = doGet(url);
         JSONObject data = new JSONObject(response);
-        Playlist playlist = new Playlist(data.getString("name"));
-        // get all playlist tracks
-        url += "/tracks";
+        return new Playlist(data.getString("name"), data.optString("snapshot_id", null));
+    }
+
+    /**
+     * Get all tracks of specified playlist.
+     *
+     * @param userID     spotify user id
+     * @param playlistID spotify playlist id
+     * @return songs e.g. "Yoga - Janelle Monae ft. Jidenna"
+     * @throws Exception
+     */
+    public List<String> getPlaylistTracks(String userID, String playlistID) throws Exception {
+        List<String> tracks = new LinkedList<>();
+        try {
+            Iterator<Track> iterator = streamPlaylistTracks(userID, playlistID);
+            while (iterator.hasNext()) {
+                tracks.add(iterator.next().name);
+            }
+        } catch (PagingException ex) {
+            throw ex.getCause();
+        }
+        return tracks;
+    }
+
+    /**
+     * Get ids of all playlists of the specified user.
+     *
+     * @param userID spotify user id
+     * @return the playlist ids
+     * @throws Exception
+     */
+    public List<String> getUserPlaylists(String userID) throws Exception {
+        List<String> playlistIDs = new ArrayList<>();
+        String url = String.format("https://api.spotify.com/v1/users/%s/playlists?limit=50&fields=%s", userID,
+                USER_PLAYLISTS_FIELDS);
         do {
-            // logger.info(url);
-            response = doGet(url, headers);
-            data = new JSONObject(response);
-            JSONArray items = data.getJSONArray("items");
-            for (int i = 0; i < items.length(); i++) {
-                JSONObject item = items.getJSONObject(i);
-                JSONObject track = item.getJSONObject("track");
-                String trackName = track.getString("name");
-                JSONArray artists = track.getJSONArray("artists");
-                for (int j = 0; j < artists.length(); j++) {
-                    // add artists to trackName
-                    String artist = artists.getJSONObject(j).getString("name");
-                    trackName += trackName.toLowerCase().contains(artist.toLowerCase()) ? "" : " " + artist;
+            try (JsonStreamReader reader = new JsonStreamReader(doGetStream(url))) {
+                url = null;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String key = reader.nextName();
+                    if (key.equals("items")) {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            reader.beginObject();
+                            if (reader.skipTo("id")) {
+                                playlistIDs.add(reader.nextString());
+                            }
+                            reader.skipRemaining();
+                            reader.endObject();
+                        }
+                        reader.endArray();
+                    } else if (key.equals("next") && reader.peek() == JsonStreamReader.Token.STRING) {
+                        url = reader.nextString();
+                    } else {
+                        reader.skipValue();
+                    }
                 }
-                playlist.addTrack(trackName);
+                reader.endObject();
             }
-            url = data.get("next") == JSONObject.NULL ? null : data.getString("next");
-            // loop until no next set of tracks
+            // loop until no next set of playlists
         } while (url != null);
-        return playlist;
+        return playlistIDs;
+    }
+
+    /**
+     * Stream tracks of specified playlist, yielding each page as it arrives.
+     * Once the first page gives the total number of tracks the following pages
+     * are fetched ahead concurrently, up to the parallel pages limit at a time, so
+     * only those pages are held in memory. Request failures are thrown from the
+     * iterator as {@link PagingException}.
+     *
+     * @param userID     spotify user id
+     * @param playlistID spotify playlist id
+     * @return iterator of tracks with their durations
+     */
+    public Iterator<Track> streamPlaylistTracks(String userID, String playlistID) {
+        // build url
+        String url = String.format("https://api.spotify.com/v1/users/%s/playlists/%s/tracks", userID, playlistID);
+        return new TrackIterator(url);
+    }
+
+    /**
+     * Read a page of playlist tracks, pulling out only the page size, track
+     * durations and track and artist names.
+     *
+     * @param reader reader over the page of playlist tracks
+     * @return the page
+     * @throws IOException when the page can not be read
+     */
+    private static Page readPage(JsonStreamReader reader) throws IOException {
+        Page page = new Page();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+            case "total":
+                page.total = reader.nextInt();
+                break;
+            case "limit":
+                page.limit = reader.nextInt();
+                break;
+            case "items":
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    reader.beginObject();
+                    while (reader.skipTo("track")) {
+                        readTrack(reader, page);
+                    }
+                    reader.endObject();
+                }
+                reader.endArray();
+                break;
+            default:
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return page;
     }
 
-    public static void getPlaylistTracks(String userID, String playlistID) {
-        throw new UnsupportedOperationException("Not supported yet.");
+    /**
+     * Read a track object into its name followed by its artists, and add it to
+     * the page unless the track is unavailable.
+     *
+     * @param reader reader positioned at the track
+     * @param page   the page to add the track to
+     * @throws IOException when the track can not be read
+     */
+    private static void readTrack(JsonStreamReader reader, Page page) throws IOException {
+        if (reader.peek() == JsonStreamReader.Token.NULL) {
+            reader.nextNull();
+            return;
+        }
+        String trackName = null;
+        long durationMs = 0;
+        List<String> artists = new ArrayList<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            if (key.equals("name")) {
+                trackName = reader.nextString();
+            } else if (key.equals("duration_ms") && reader.peek() == JsonStreamReader.Token.NUMBER) {
+                durationMs = reader.nextInt();
+            } else if (key.equals("artists")) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    reader.beginObject();
+                    if (reader.skipTo("name")) {
+                        artists.add(reader.nextString());
+                    }
+                    reader.skipRemaining();
+                    reader.endObject();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (trackName == null) {
+            return;
+        }
+        for (String artist : artists) {
+            // add artists to trackName
+            trackName += trackName.toLowerCase().contains(artist.toLowerCase()) ? "" : " " + artist;
+        }
+        page.tracks.add(new Track(trackName, durationMs));
     }
 
     /**
@@ -204,6 +397,220 @@ public class SpotifyREST {
         return s.replaceAll("(" + placeHolder + ")+", placeHolder);
     }
 
+    /**
+     * Thrown when the API responds with an error status. Holds the response of
+     * the failed call.
+     */
+    public static class ApiException extends IOException {
+
+        private static final long serialVersionUID = 1;
+        private final int responseCode;
+        private final String responseBody;
+
+        /**
+         * Create new exception.
+         *
+         * @param responseCode the HTTP status code
+         * @param responseBody the raw response body
+         */
+        public ApiException(int responseCode, String responseBody) {
+            super("Spotify responded with " + responseCode);
+            this.responseCode = responseCode;
+            this.responseBody = responseBody;
+        }
+
+        /**
+         * @return the HTTP status code
+         */
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        /**
+         * @return the raw response body
+         */
+        public String getResponseBody() {
+            return responseBody;
+        }
+
+        /**
+         * Get the error message from the response body.
+         *
+         * @return the API error message or the raw body if not JSON
+         */
+        public String getErrorMessage() {
+            try {
+                return new JSONObject(responseBody.trim()).getJSONObject("error").getString("message");
+            } catch (RuntimeException ex) {
+                return responseBody;
+            }
+        }
+    }
+
+    /**
+     * Thrown from track iterators when a page request fails.
+     */
+    public static class PagingException extends RuntimeException {
+
+        private static final long serialVersionUID = 1;
+
+        /**
+         * Create new exception.
+         *
+         * @param cause the failure of the page request
+         */
+        public PagingException(Exception cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized Exception getCause() {
+            return (Exception) super.getCause();
+        }
+    }
+
+    /**
+     * Page of playlist tracks.
+     */
+    private static class Page {
+
+        private int total;
+        private int limit;
+        private final List<Track> tracks = new ArrayList<>();
+
+    }
+
+    /**
+     * Iterator over the tracks of a playlist, fetching pages ahead of the
+     * consumer.
+     */
+    private class TrackIterator implements Iterator<Track> {
+
+        private final String url;
+        private final Deque<Future<Page>> pages = new ArrayDeque<>();
+        private ExecutorService pool;
+        private Iterator<Track> page = Collections.emptyIterator();
+        private boolean started;
+        private int nextOffset;
+        private int total;
+        private int limit;
+
+        private TrackIterator(String url) {
+            this.url = url;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!page.hasNext()) {
+                Page data;
+                if (!started) {
+                    started = true;
+                    data = fetch(0, PAGE_SIZE);
+                    total = data.total;
+                    limit = data.limit > 0 ? data.limit : PAGE_SIZE;
+                    nextOffset = limit;
+                    if (parallelPages > 1) {
+                        pool = Executors.newFixedThreadPool(parallelPages, runnable -> {
+                            Thread thread = new Thread(runnable, "spotripy-pages");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+                    }
+                } else if (pages.isEmpty()) {
+                    return false;
+                } else {
+                    data = await(pages.poll());
+                }
+                fetchAhead();
+                page = data.tracks.iterator();
+            }
+            return true;
+        }
+
+        @Override
+        public Track next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.next();
+        }
+
+        private void fetchAhead() {
+            while (nextOffset < total && pages.size() < Math.max(1, parallelPages)) {
+                int offset = nextOffset;
+                Callable<Page> request = () -> fetch(offset, limit);
+                // without a pool the page is only requested once it is awaited
+                pages.add(pool == null ? new FutureTask<>(request) : pool.submit(request));
+                nextOffset += limit;
+            }
+            if (nextOffset >= total && pool != null) {
+                pool.shutdown();
+            }
+        }
+
+        private Page fetch(int offset, int count) {
+            String pageUrl = url + "?offset=" + offset + "&limit=" + count + "&fields=" + PAGE_FIELDS;
+            try (JsonStreamReader reader = new JsonStreamReader(doGetStream(pageUrl))) {
+                return readPage(reader);
+            } catch (Exception ex) {
+                throw new PagingException(ex);
+            }
+        }
+
+        private Page await(Future<Page> future) {
+            try {
+                if (future instanceof FutureTask) {
+                    ((FutureTask<Page>) future).run();
+                }
+                return future.get();
+            } catch (ExecutionException ex) {
+                if (pool != null) {
+                    pool.shutdownNow();
+                }
+                Throwable cause = ex.getCause();
+                throw cause instanceof PagingException ? (PagingException) cause
+                        : new PagingException(cause instanceof Exception ? (Exception) cause : ex);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new PagingException(ex);
+            }
+        }
+
+    }
+
+    /**
+     * Track of a playlist.
+     */
+    public static class Track {
+
+        /**
+         * Song e.g. "Yoga - Janelle Monae ft. Jidenna"
+         */
+        public final String name;
+
+        /**
+         * Duration of the track in milliseconds, 0 if unknown
+         */
+        public final long durationMs;
+
+        /**
+         * Instantiate track object.
+         *
+         * @param name       Song including artists
+         * @param durationMs Duration in milliseconds, 0 if unknown
+         */
+        public Track(String name, long durationMs) {
+            this.name = name;
+            this.durationMs = durationMs;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+
+    }
+
     public static class Playlist {
 
         /**
@@ -211,6 +618,12 @@ public class SpotifyREST {
          */
         public final String name;
 
+        /**
+         * Version of the playlist, changes whenever its tracks change. May be
+         * null
+         */
+        public final String snapshotId;
+
         /**
          * Playlist tracks. Can only be instantiated once
          */
@@ -222,7 +635,18 @@ public class SpotifyREST {
          * @param name Playlist name
          */
         public Playlist(String name) {
+            this(name, null);
+        }
+
+        /**
+         * Instantiate playlist object.
+         *
+         * @param name       Playlist name
+         * @param snapshotId Playlist version
+         */
+        public Playlist(String name, String snapshotId) {
             this.name = name;
+            this.snapshotId = snapshotId;
             this.tracks = new LinkedList<>();
         }
 
@@ -0,0 +1,356 @@
+package com.spotripy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent state of a playlist sync. Remembers the playlist snapshot that was
+ * last synced and which of its tracks are done, so unchanged playlists need no
+ * track paging and changed ones only process the difference. Tracks carry their
+ * Spotify duration to verify downloads against, the content hash once
+ * verified, and when a track no search could find may be searched for again.
+ * Only tracks done with a verified hash are synced, others are processed again.
+ * While tracks complete the state is saved every so often, so a crash loses
+ * little.
+ */
+public class SyncState {
+
+    /**
+     * Name of the state file in the playlist folder.
+     */
+    public static final String FILENAME = ".sync";
+
+    private static final String SNAPSHOT = "snapshot";
+    private static final int MAX_RETRY_DOUBLINGS = 5; // longest wait is 32 times the first
+    private static final long SAVE_INTERVAL = 30000; // 30s
+    private static final Logger logger = Logger.getLogger(SyncState.class.getName());
+
+    private final File file;
+    private final Map<String, TrackState> tracks = new LinkedHashMap<>();
+    private String snapshotId;
+    private long savedAt = System.currentTimeMillis();
+
+    private SyncState(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Load the sync state of the playlist folder, empty if never synced.
+     *
+     * @param folder the playlist folder
+     * @return the loaded state
+     */
+    public static SyncState load(File folder) {
+        SyncState state = new SyncState(new File(folder, FILENAME));
+        if (state.file.exists()) {
+            try {
+                for (String line : Files.readAllLines(state.file.toPath(), StandardCharsets.UTF_8)) {
+                    String[] fields = line.split("\t", -1);
+                    if (fields.length < 2) {
+                        continue;
+                    }
+                    if (fields[0].equals(SNAPSHOT)) {
+                        state.snapshotId = LinkJournal.unescape(fields[1]);
+                    } else {
+                        TrackState track = TrackState.decode(fields);
+                        state.tracks.put(track.name, track);
+                    }
+                }
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Cannot load sync state.", ex);
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Write the state to a temporary file then move it over the state file.
+     */
+    public synchronized void save() {
+        savedAt = System.currentTimeMillis();
+        File tmpFile = new File(file.getParentFile(), FILENAME + ".tmp");
+        try {
+            try (Writer out = Files.newBufferedWriter(tmpFile.toPath(), StandardCharsets.UTF_8)) {
+                if (snapshotId != null) {
+                    out.write(SNAPSHOT + "\t" + LinkJournal.escape(snapshotId) + "\n");
+                }
+                for (TrackState track : tracks.values()) {
+                    out.write(track.encode() + "\n");
+                }
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Cannot save sync state.", ex);
+        }
+    }
+
+    /**
+     * @return the snapshot id of the last synced playlist version or null
+     */
+    public synchronized String getSnapshotId() {
+        return snapshotId;
+    }
+
+    /**
+     * Check if the playlist version was already synced.
+     *
+     * @param snapshot the current snapshot id of the playlist
+     * @return true if the snapshot is the one last synced
+     */
+    public synchronized boolean isUnchanged(String snapshot) {
+        return snapshot != null && snapshot.equals(snapshotId);
+    }
+
+    /**
+     * Record a track seen while streaming a new playlist version. Tracks already
+     * known keep their state.
+     *
+     * @param name       the track name
+     * @param durationMs the track duration in milliseconds or 0 if unknown
+     * @return true if the track is not yet synced
+     */
+    public synchronized boolean see(String name, long durationMs) {
+        TrackState track = tracks.get(name);
+        if (track == null) {
+            track = new TrackState(name);
+            tracks.put(name, track);
+        }
+        if (durationMs > 0) {
+            track.durationMs = durationMs;
+        }
+        track.seen = true;
+        return !track.isSynced();
+    }
+
+    /**
+     * @param name the track name
+     * @return the track duration in milliseconds or 0 if unknown
+     */
+    public synchronized long getDurationMs(String name) {
+        TrackState track = tracks.get(name);
+        return track == null ? 0 : track.durationMs;
+    }
+
+    /**
+     * Make the tracks seen since the last commit the synced track list of the
+     * new playlist version.
+     *
+     * @param snapshot the snapshot id of the new version
+     * @return the tracks no longer in the playlist
+     */
+    public synchronized Set<String> commit(String snapshot) {
+        Set<String> removed = new LinkedHashSet<>();
+        Iterator<TrackState> iterator = tracks.values().iterator();
+        while (iterator.hasNext()) {
+            TrackState track = iterator.next();
+            if (!track.seen) {
+                removed.add(track.name);
+                iterator.remove();
+            }
+            track.seen = false;
+        }
+        snapshotId = snapshot;
+        return removed;
+    }
+
+    /**
+     * Mark synced tracks whose file is gone or changed as not synced, so they
+     * are processed again even if the playlist is unchanged.
+     *
+     * @param intact tells if the file of a synced track is still in the folder
+     *               as synced
+     * @return the tracks marked as not synced
+     */
+    public synchronized List<String> unsyncMissing(Predicate<String> intact) {
+        List<String> missing = new ArrayList<>();
+        for (TrackState track : tracks.values()) {
+            if (track.isSynced() && !intact.test(track.name)) {
+                track.done = false;
+                track.hash = null;
+                missing.add(track.name);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * @return the tracks not yet synced, in playlist order
+     */
+    public synchronized List<String> pendingTracks() {
+        List<String> pending = new ArrayList<>();
+        for (TrackState track : tracks.values()) {
+            if (!track.isSynced()) {
+                pending.add(track.name);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * @return number of tracks in the synced playlist version
+     */
+    public synchronized int size() {
+        return tracks.size();
+    }
+
+    /**
+     * Mark a track as downloaded without a known hash. The track is verified
+     * when next synced.
+     *
+     * @param name the track name
+     */
+    public synchronized void markDone(String name) {
+        TrackState track = tracks.get(name);
+        if (track != null) {
+            track.done = true;
+            track.misses = 0;
+            track.retryAt = 0;
+            saveIfDue();
+        }
+    }
+
+    /**
+     * Record that no download could be found for a track. It is not searched
+     * for again until a retry window has passed, which doubles with each
+     * search that finds nothing.
+     *
+     * @param name         the track name
+     * @param firstRetryMs the window after the first search that found nothing
+     * @return the time in milliseconds since the epoch the track may be searched
+     *         for again
+     */
+    public synchronized long markNotFound(String name, long firstRetryMs) {
+        TrackState track = tracks.get(name);
+        if (track == null) {
+            return 0;
+        }
+        track.retryAt = System.currentTimeMillis() + (firstRetryMs << Math.min(track.misses, MAX_RETRY_DOUBLINGS));
+        track.misses++;
+        saveIfDue();
+        return track.retryAt;
+    }
+
+    /**
+     * @param name the track name
+     * @return the time in milliseconds since the epoch until which the track is
+     *         not searched for, 0 or past if it may be searched for now
+     */
+    public synchronized long getRetryAt(String name) {
+        TrackState track = tracks.get(name);
+        return track == null ? 0 : track.retryAt;
+    }
+
+    /**
+     * Mark a track as downloaded and verified.
+     *
+     * @param name the track name
+     * @param hash the hex SHA-256 of the verified file
+     */
+    public synchronized void markVerified(String name, String hash) {
+        TrackState track = tracks.get(name);
+        if (track != null) {
+            track.done = true;
+            track.hash = hash;
+            track.misses = 0;
+            track.retryAt = 0;
+            saveIfDue();
+        }
+    }
+
+    /**
+     * @param name the track name
+     * @return the hash of the verified download of the track or null if not
+     *         verified
+     */
+    public synchronized String getHash(String name) {
+        TrackState track = tracks.get(name);
+        return track == null || !track.done ? null : track.hash;
+    }
+
+    /**
+     * Save the state if it was last saved a while ago.
+     */
+    private void saveIfDue() {
+        if (System.currentTimeMillis() - savedAt >= SAVE_INTERVAL) {
+            save();
+        }
+    }
+
+    /**
+     * Sync state of a single track.
+     */
+    private static class TrackState {
+
+        private final String name;
+        private boolean done;
+        private boolean seen;
+        private long durationMs;
+        private String hash;
+        private int misses; // searches in a row that found nothing
+        private long retryAt; // ms since the epoch, no search before
+
+        private TrackState(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return true if the track was downloaded and verified
+         */
+        private boolean isSynced() {
+            return done && hash != null;
+        }
+
+        /**
+         * @return status, name, duration, hash, misses and retry time separated
+         *         by tabs
+         */
+        private String encode() {
+            return (done ? "done" : "pending") + "\t" + LinkJournal.escape(name) + "\t" + durationMs + "\t"
+                    + (hash == null ? "" : hash) + "\t" + misses + "\t" + retryAt;
+        }
+
+        /**
+         * Decode a track, lines written before tracks had a duration and hash
+         * only have status and name, and before not found tracks were retried
+         * later no misses and retry time.
+         */
+        private static TrackState decode(String[] fields) {
+            TrackState track = new TrackState(LinkJournal.unescape(fields[1]));
+            track.done = fields[0].equals("done");
+            if (fields.length >= 4) {
+                try {
+                    track.durationMs = Long.parseLong(fields[2]);
+                } catch (NumberFormatException ex) {
+                    // unknown duration
+                }
+                track.hash = fields[3].isEmpty() ? null : fields[3];
+            }
+            if (fields.length >= 6) {
+                try {
+                    track.misses = Integer.parseInt(fields[4]);
+                    track.retryAt = Long.parseLong(fields[5]);
+                } catch (NumberFormatException ex) {
+                    // search again
+                }
+            }
+            return track;
+        }
+
+    }
+
+}
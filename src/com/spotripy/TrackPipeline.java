@@ -0,0 +1,321 @@
+package com.spotripy;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Staged track processing pipeline. Each track moves through the resolve,
+ * download and verify stages, every stage being served by its own bounded pool
+ * of workers so that searches and downloads of different tracks overlap.
+ */
+public class TrackPipeline implements AutoCloseable {
+
+    /**
+     * How stage work is scheduled on threads.
+     */
+    public enum Mode {
+        /**
+         * Every stage runs on its own fixed size pool of platform threads.
+         */
+        POOLED,
+        /**
+         * Every stage task runs on its own virtual thread, no pool sizing needed.
+         * Runtimes without virtual threads run pooled instead.
+         */
+        VIRTUAL,
+        /**
+         * All stages run one track at a time on the calling thread.
+         */
+        SEQUENTIAL
+    }
+
+    /**
+     * Default number of workers searching for download links.
+     */
+    public static final int DEFAULT_RESOLVE_WORKERS = 4;
+
+    /**
+     * Default number of workers downloading tracks.
+     */
+    public static final int DEFAULT_DOWNLOAD_WORKERS = 4;
+
+    /**
+     * Default number of workers verifying downloaded tracks.
+     */
+    public static final int DEFAULT_VERIFY_WORKERS = 1;
+
+    private static final Logger logger = Logger.getLogger(TrackPipeline.class.getName());
+
+    private final Executor resolvers;
+    private final Executor downloaders;
+    private final Executor verifiers;
+    private final List<ExecutorService> pools = new ArrayList<>();
+    private final Set<CompletableFuture<Job>> inFlight = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Create pooled pipeline with the specified concurrency limit per stage.
+     *
+     * @param resolveWorkers  max number of concurrent link searches
+     * @param downloadWorkers max number of concurrent downloads
+     * @param verifyWorkers   max number of concurrent verifications
+     */
+    public TrackPipeline(int resolveWorkers, int downloadWorkers, int verifyWorkers) {
+        this(Mode.POOLED, resolveWorkers, downloadWorkers, verifyWorkers);
+    }
+
+    /**
+     * Create pipeline running in the specified mode. Worker limits only apply to
+     * the pooled mode, which the virtual mode falls back to on runtimes without
+     * virtual threads.
+     *
+     * @param mode            how stage work is scheduled
+     * @param resolveWorkers  max number of concurrent link searches
+     * @param downloadWorkers max number of concurrent downloads
+     * @param verifyWorkers   max number of concurrent verifications
+     */
+    public TrackPipeline(Mode mode, int resolveWorkers, int downloadWorkers, int verifyWorkers) {
+        ExecutorService perTask = mode == Mode.VIRTUAL ? newVirtualThreadPerTaskExecutor() : null;
+        if (mode == Mode.VIRTUAL && perTask == null) {
+            logger.log(Level.WARNING, "Virtual threads not supported by this runtime. Using {0} mode.", Mode.POOLED);
+            mode = Mode.POOLED;
+        }
+        switch (mode) {
+        case SEQUENTIAL:
+            resolvers = downloaders = verifiers = Runnable::run;
+            break;
+        case VIRTUAL:
+            resolvers = downloaders = verifiers = track(perTask);
+            break;
+        default:
+            resolvers = track(newStagePool("resolve", resolveWorkers));
+            downloaders = track(newStagePool("download", downloadWorkers));
+            verifiers = track(newStagePool("verify", verifyWorkers));
+        }
+    }
+
+    /**
+     * Create pipeline with execution mode and concurrency limits read from
+     * configuration.
+     *
+     * @param config the configuration to read "execution-mode",
+     *               "resolve-workers", "download-workers" and "verify-workers"
+     *               from
+     * @return the new pipeline
+     */
+    public static TrackPipeline fromConfig(Configuration config) {
+        Mode mode = Mode.POOLED;
+        String value = config.getProperty("execution-mode", mode.name());
+        try {
+            mode = Mode.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            logger.log(Level.WARNING, "Unknown execution mode ''{0}''. Using {1}.", new Object[] { value, mode });
+        }
+        return new TrackPipeline(mode, config.getIntProperty("resolve-workers", DEFAULT_RESOLVE_WORKERS),
+                config.getIntProperty("download-workers", DEFAULT_DOWNLOAD_WORKERS),
+                config.getIntProperty("verify-workers", DEFAULT_VERIFY_WORKERS));
+    }
+
+    private ExecutorService track(ExecutorService pool) {
+        pools.add(pool);
+        return pool;
+    }
+
+    /**
+     * Create executor starting a new virtual thread per task. Virtual threads
+     * only exist from Java 21.
+     *
+     * @return the per task executor or null if the runtime has no virtual
+     *         threads
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newStagePool(String stage, int workers) {
+        int size = Math.max(1, workers);
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = runnable -> {
+            Thread thread = new Thread(runnable, "spotripy-" + stage + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return new ThreadPoolExecutor(size, size, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), factory);
+    }
+
+    /**
+     * Queue a track job through all the stages of the pipeline. A stage is
+     * skipped once the job is finished or has failed in an earlier stage.
+     *
+     * @param job        the track job to process
+     * @param resolver   stage looking up the download link
+     * @param downloader stage downloading the link to file
+     * @param verifier   stage checking the downloaded file
+     * @return future completed with the job after the last stage
+     */
+    public CompletableFuture<Job> submit(Job job, Stage resolver, Stage downloader, Stage verifier) {
+        CompletableFuture<Job> future = CompletableFuture.supplyAsync(() -> run(resolver, job), resolvers)
+                .thenApplyAsync(j -> run(downloader, j), downloaders)
+                .thenApplyAsync(j -> run(verifier, j), verifiers);
+        inFlight.add(future);
+        future.whenComplete((j, ex) -> inFlight.remove(future));
+        return future;
+    }
+
+    private static Job run(Stage stage, Job job) {
+        if (!job.isFinished()) {
+            try {
+                stage.process(job);
+            } catch (Exception ex) {
+                job.fail(ex);
+            }
+        }
+        return job;
+    }
+
+    /**
+     * Wait for the queued jobs to finish then release the workers.
+     */
+    @Override
+    public void close() {
+        // jobs still hand work over to later stages, drain them before shutdown
+        while (!inFlight.isEmpty()) {
+            for (CompletableFuture<Job> job : inFlight) {
+                job.handle((j, ex) -> j).join();
+                inFlight.remove(job);
+            }
+        }
+        try {
+            for (ExecutorService pool : pools) {
+                pool.shutdown();
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException ex) {
+            logger.log(Level.WARNING, "Interrupted waiting for pipeline to drain.");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A single step of the pipeline.
+     */
+    public interface Stage {
+
+        /**
+         * Process the job, updating its state.
+         *
+         * @param job the track job
+         * @throws Exception when the stage fails for this job
+         */
+        public void process(Job job) throws Exception;
+    }
+
+    /**
+     * State of a single track moving through the pipeline.
+     */
+    public static class Job {
+
+        /**
+         * Track name including artists.
+         */
+        public final String track;
+
+        /**
+         * File the track is downloaded to.
+         */
+        public final File file;
+
+        /**
+         * Resolved download link, null until the resolve stage sets it.
+         */
+        public volatile String downloadLink;
+
+        /**
+         * Other candidates found for the track, best first, to fall back to when
+         * downloading the link fails.
+         */
+        public volatile List<Candidate> fallbacks = Collections.emptyList();
+
+        /**
+         * True if the download link came from the cache.
+         */
+        public volatile boolean usingCache;
+
+        /**
+         * Check of the downloaded file, null until the download stage sets it.
+         */
+        public volatile Mp3Verifier.Result verification;
+
+        private volatile boolean finished;
+        private volatile Exception error;
+
+        /**
+         * Create new track job.
+         *
+         * @param track the track name
+         * @param file  the file to download to
+         */
+        public Job(String track, File file) {
+            this.track = track;
+            this.file = file;
+        }
+
+        /**
+         * Mark the job as done, later stages will be skipped.
+         */
+        public void finish() {
+            finished = true;
+        }
+
+        /**
+         * Mark the job as failed, later stages will be skipped.
+         *
+         * @param ex the cause of the failure
+         */
+        public void fail(Exception ex) {
+            error = ex;
+            finished = true;
+        }
+
+        /**
+         * @return true if no more stages should run for this job
+         */
+        public boolean isFinished() {
+            return finished;
+        }
+
+        /**
+         * @return the failure cause or null if the job did not fail
+         */
+        public Exception getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return track;
+        }
+
+    }
+
+}
@@ -0,0 +1,279 @@
+package com.spotripy;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Content-addressed store of downloaded tracks under the download folder. Each
+ * track is stored once, named after the SHA-256 of its content, and playlist
+ * folders get hard links to it. Where hard links are not supported symbolic
+ * links are used, and failing those a copy. Stored tracks no playlist folder
+ * links to any more are swept after a sync.
+ *
+ * <pre>
+ * {download folder}/.spotripy.store/{first 2 hash chars}/{hash}.mp3
+ * </pre>
+ */
+public class TrackStore implements Closeable {
+
+    /**
+     * Name of the store folder in the download folder.
+     */
+    public static final String FOLDER_NAME = ".spotripy.store";
+
+    /**
+     * Name of the index from track identity to content hash.
+     */
+    public static final String INDEX_NAME = ".spotripy.blobs";
+
+    private static final Logger logger = Logger.getLogger(TrackStore.class.getName());
+
+    private final File root;
+    private final String extension;
+    private final LinkIndex hashes;
+
+    private TrackStore(File root, String extension, LinkIndex hashes) {
+        this.root = root;
+        this.extension = extension;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Open the store in the download folder.
+     *
+     * @param downloadFolder the download folder
+     * @param extension      the extension of the stored files
+     * @return the opened store
+     * @throws IOException when the store index can not be opened
+     */
+    public static TrackStore open(File downloadFolder, String extension) throws IOException {
+        File root = new File(downloadFolder, FOLDER_NAME);
+        root.mkdir();
+        return new TrackStore(root, extension, LinkIndex.open(downloadFolder, INDEX_NAME));
+    }
+
+    /**
+     * Find the stored file of a track.
+     *
+     * @param track the track name
+     * @return the stored file or null if the track is not stored
+     */
+    public File lookup(String track) {
+        String hash = hashes.get(track);
+        if (hash == null) {
+            return null;
+        }
+        File blob = blobFile(hash);
+        return blob.exists() ? blob : null;
+    }
+
+    /**
+     * Find the content hash of a stored track.
+     *
+     * @param track the track name
+     * @return the hex SHA-256 of the stored file or null if the track is not
+     *         stored
+     */
+    public String getHash(String track) {
+        return lookup(track) == null ? null : hashes.get(track);
+    }
+
+    /**
+     * Move a downloaded file into the store and replace it with a link to the
+     * stored file. If the same content is already stored the download is just
+     * replaced with a link to it.
+     *
+     * @param track the track name
+     * @param file  the downloaded file
+     * @return the stored file
+     * @throws IOException when the file can not be hashed, moved or linked
+     */
+    public File add(String track, File file) throws IOException {
+        return add(track, file, hash(file));
+    }
+
+    /**
+     * Move a downloaded file whose content hash is already known into the
+     * store, see {@link #add(String, File)}.
+     *
+     * @param track the track name
+     * @param file  the downloaded file
+     * @param hash  the hex SHA-256 of the file
+     * @return the stored file
+     * @throws IOException when the file can not be moved or linked
+     */
+    public File add(String track, File file, String hash) throws IOException {
+        File blob = blobFile(hash);
+        blob.getParentFile().mkdirs();
+        if (!blob.exists()) {
+            Files.move(file.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } else if (Files.isSameFile(file.toPath(), blob.toPath())) {
+            hashes.put(track, hash);
+            return blob; // already linked to the store
+        }
+        link(blob, file);
+        hashes.put(track, hash);
+        return blob;
+    }
+
+    /**
+     * Forget the stored file of a track if a bad file in a playlist folder links
+     * to it, as the stored content is then bad as well.
+     *
+     * @param track the track name
+     * @param file  the bad file in the playlist folder
+     */
+    public void discard(String track, File file) {
+        File blob = lookup(track);
+        try {
+            if (blob != null && Files.isSameFile(blob.toPath(), file.toPath())) {
+                Files.delete(blob.toPath());
+                hashes.remove(track);
+            }
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Cannot discard stored track " + blob, ex);
+        }
+    }
+
+    /**
+     * Link a stored file into a playlist folder, replacing any file there.
+     *
+     * @param blob   the stored file
+     * @param target the file in the playlist folder
+     * @throws IOException when no link or copy can be made
+     */
+    public void link(File blob, File target) throws IOException {
+        Path tmp = new File(target.getParentFile(), "." + target.getName() + ".link").toPath();
+        Files.deleteIfExists(tmp);
+        try {
+            Files.createLink(tmp, blob.toPath());
+        } catch (IOException | UnsupportedOperationException ex) {
+            try {
+                Files.createSymbolicLink(tmp, blob.getAbsoluteFile().toPath());
+            } catch (IOException | UnsupportedOperationException symlinkEx) {
+                logger.log(Level.FINE, "Cannot link {0}, copying instead", target);
+                Files.copy(blob.toPath(), tmp);
+            }
+        }
+        Files.move(tmp, target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Delete stored tracks no playlist folder links to any more and forget
+     * their hashes. A stored file with a single hard link left is only linked
+     * from the store. Where the download folder does not support hard links,
+     * playlist folders may hold symbolic links or copies instead and nothing
+     * is deleted.
+     *
+     * @return the number of stored tracks deleted
+     */
+    public int sweep() {
+        if (!hardLinked()) {
+            logger.log(Level.FINE, "No hard links in {0}, not sweeping the store", root);
+            return 0;
+        }
+        Set<String> swept = new HashSet<>();
+        File[] folders = root.listFiles(File::isDirectory);
+        for (File folder : folders == null ? new File[0] : folders) {
+            File[] blobs = folder.listFiles((dir, name) -> name.endsWith("." + extension));
+            for (File blob : blobs == null ? new File[0] : blobs) {
+                try {
+                    if ((Integer) Files.getAttribute(blob.toPath(), "unix:nlink") == 1) {
+                        Files.delete(blob.toPath());
+                        swept.add(blob.getName().substring(0, blob.getName().length() - extension.length() - 1));
+                    }
+                } catch (IOException ex) {
+                    logger.log(Level.WARNING, "Cannot sweep stored track " + blob, ex);
+                }
+            }
+        }
+        if (!swept.isEmpty()) {
+            hashes.removeValues(swept);
+            logger.log(Level.INFO, "Removed {0} stored track(s) no playlist links to", swept.size());
+        }
+        return swept.size();
+    }
+
+    /**
+     * Check that a file in the store can be hard linked into the download
+     * folder and that its link count can be read.
+     */
+    private boolean hardLinked() {
+        Path probe = new File(root, ".probe").toPath();
+        Path link = new File(root.getParentFile(), FOLDER_NAME + ".probe").toPath();
+        try {
+            Files.deleteIfExists(link);
+            Files.deleteIfExists(probe);
+            Files.createFile(probe);
+            Files.createLink(link, probe);
+            return (Integer) Files.getAttribute(probe, "unix:nlink") == 2;
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException ex) {
+            return false;
+        } finally {
+            try {
+                Files.deleteIfExists(link);
+                Files.deleteIfExists(probe);
+            } catch (IOException ex) {
+                logger.log(Level.FINE, "Cannot delete link probe", ex);
+            }
+        }
+    }
+
+    private File blobFile(String hash) {
+        return new File(new File(root, hash.substring(0, 2)), hash + "." + extension);
+    }
+
+    /**
+     * @return hex SHA-256 of the file content
+     */
+    private static String hash(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @return new SHA-256 message digest
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 not supported", ex);
+        }
+    }
+
+    /**
+     * @return bytes as lower case hex string
+     */
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        hashes.close();
+    }
+
+}